@@ -48,6 +48,9 @@ public class DownloadManagerService extends Service {
     public static final String ACTION_START_DOWNLOAD_MANAGER_ACTIVITY = "download.manager.open.activity";
     public static final String CONCURRENCY_DOWNLOAD_KEY = "concurrency_download";
     public static final String MAX_CHUNKS_KEY = "max_chunks";
+    public static final String BANDWIDTH_LIMIT_KEY = "bandwidth_limit";
+    public static final String TASK_BANDWIDTH_LIMIT_KEY = "task_bandwidth_limit";
+    public static final String TASK_BANDWIDTH_WEIGHT_KEY = "task_bandwidth_weight";
     public static final int DEFAULT_CONCURRENCY_DOWNLOAD = 2;
     public static final int DEFAULT_MAX_CHUNKS = 8;
     private HandlerThread handlerThread;
@@ -74,6 +77,29 @@ public class DownloadManagerService extends Service {
         context.startService(downloadIntent);
     }
 
+    /**
+     * @param bytesPerSec download speed limit of all tasks, 0 to remove the limit
+     */
+    public static void updateBandwidthLimit(Context context, long bytesPerSec) {
+        Intent downloadIntent = new Intent(context, DownloadManagerService.class);
+        downloadIntent.setAction(ACTION_UPDATE_SETTINGS);
+        downloadIntent.putExtra(BANDWIDTH_LIMIT_KEY, bytesPerSec);
+        context.startService(downloadIntent);
+    }
+
+    /**
+     * @param bytesPerSec download speed limit of one task, 0 to remove the limit
+     * @param weight      share of global limit, default is 1
+     */
+    public static void updateTaskBandwidth(Context context, int taskId, long bytesPerSec, int weight) {
+        Intent downloadIntent = new Intent(context, DownloadManagerService.class);
+        downloadIntent.setAction(ACTION_UPDATE_SETTINGS);
+        downloadIntent.putExtra(TASK_ID_KEY, taskId);
+        downloadIntent.putExtra(TASK_BANDWIDTH_LIMIT_KEY, bytesPerSec);
+        downloadIntent.putExtra(TASK_BANDWIDTH_WEIGHT_KEY, weight);
+        context.startService(downloadIntent);
+    }
+
     private class Binder extends android.os.Binder {
         public DownloadManagerService getService() {
             return DownloadManagerService.this;
@@ -108,6 +134,7 @@ public class DownloadManagerService extends Service {
         chunkCount = sharedPreferences.getInt(CHUNK_COUNT_KEY, 8);
 
         downloadManagerPro = new DownloadManagerPro(this, downloadTaskPerTime);
+        downloadManagerPro.setBandwidthLimit(sharedPreferences.getLong(BANDWIDTH_LIMIT_KEY, 0));
 
         WifiManager wifiManager = (WifiManager)getApplicationContext().getSystemService(Context.WIFI_SERVICE);
         wifiLock = wifiManager.createWifiLock(TAG);
@@ -133,6 +160,11 @@ public class DownloadManagerService extends Service {
         sharedPreferences.edit().putInt(CHUNK_COUNT_KEY, n).apply();
     }
 
+    public void setBandwidthLimit(long bytesPerSec) {
+        downloadManagerPro.setBandwidthLimit(bytesPerSec);
+        sharedPreferences.edit().putLong(BANDWIDTH_LIMIT_KEY, bytesPerSec).apply();
+    }
+
     public void addTask(String url, String fileName, String sdCardFolder, boolean overwrite, String jsonExtra,
                         long fileSize) {
         downloadManagerPro.addTask(url, fileName, sdCardFolder, chunkCount, overwrite, jsonExtra, fileSize);
@@ -172,11 +204,26 @@ public class DownloadManagerService extends Service {
             } else if (ACTION_START_QUEUE.equals(intent.getAction())) {
                 startQueue();
             } else if (ACTION_UPDATE_SETTINGS.equals(intent.getAction())) {
-                int concurrencyDownload = intent.getIntExtra(CONCURRENCY_DOWNLOAD_KEY, DEFAULT_CONCURRENCY_DOWNLOAD);
-                int maxChunks = intent.getIntExtra(MAX_CHUNKS_KEY, DEFAULT_MAX_CHUNKS);
-                setDownloadTaskPerTime(concurrencyDownload);
-                setChunkCount(maxChunks);
-                Timber.d("Change setting, concurrency download: %d, max chunks: %d", concurrencyDownload, maxChunks);
+                // apply only settings in this intent
+                if (intent.hasExtra(CONCURRENCY_DOWNLOAD_KEY) || intent.hasExtra(MAX_CHUNKS_KEY)) {
+                    int concurrencyDownload = intent.getIntExtra(CONCURRENCY_DOWNLOAD_KEY, DEFAULT_CONCURRENCY_DOWNLOAD);
+                    int maxChunks = intent.getIntExtra(MAX_CHUNKS_KEY, DEFAULT_MAX_CHUNKS);
+                    setDownloadTaskPerTime(concurrencyDownload);
+                    setChunkCount(maxChunks);
+                    Timber.d("Change setting, concurrency download: %d, max chunks: %d", concurrencyDownload, maxChunks);
+                }
+                if (intent.hasExtra(BANDWIDTH_LIMIT_KEY)) {
+                    long bandwidthLimit = intent.getLongExtra(BANDWIDTH_LIMIT_KEY, 0);
+                    setBandwidthLimit(bandwidthLimit);
+                    Timber.d("Change setting, bandwidth limit: %d B/s", bandwidthLimit);
+                }
+                int taskId = intent.getIntExtra(TASK_ID_KEY, -1);
+                if (taskId != -1 && intent.hasExtra(TASK_BANDWIDTH_LIMIT_KEY)) {
+                    downloadManagerPro.setTaskBandwidthLimit(taskId, intent.getLongExtra(TASK_BANDWIDTH_LIMIT_KEY, 0));
+                }
+                if (taskId != -1 && intent.hasExtra(TASK_BANDWIDTH_WEIGHT_KEY)) {
+                    downloadManagerPro.setTaskBandwidthWeight(taskId, intent.getIntExtra(TASK_BANDWIDTH_WEIGHT_KEY, 1));
+                }
             }
         }
         return START_NOT_STICKY;
@@ -0,0 +1,185 @@
+package com.golshadi.majid.Utils.helper;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of transfer buffers shared by chunk workers, rebuild and verification.
+ * <p>
+ * A buffer is taken once per transfer, not per read, so the copy loops don't allocate
+ * in steady state. Buffers of the pool, idle or in use, take at most {@code maxAllocatedBytes};
+ * past it a transfer still gets a buffer rather than waiting, but it's counted as overflow
+ * and left to GC on release. At most {@code maxPooledBytes} of idle buffers are kept.
+ * {@link #trim()} drops every idle buffer, it's called when the system is low on memory.
+ * Transfers needing another buffer size share a pool of that size, see {@link #getInstance(int)}.
+ */
+public class BufferPool {
+
+    public static final int BUFFER_SIZE = 32 * 1024; // 32KB
+    public static final int DEFAULT_MAX_POOLED_BYTES = 64 * BUFFER_SIZE; // 2MB
+    public static final int DEFAULT_MAX_ALLOCATED_BYTES = 256 * BUFFER_SIZE; // 8MB
+
+    private static final BufferPool INSTANCE = new BufferPool(BUFFER_SIZE, DEFAULT_MAX_POOLED_BYTES);
+    private static final List<BufferPool> SIZED_POOLS = new ArrayList<>(); // other sizes, under itself
+
+    private final int bufferSize;
+    private volatile int maxPooledBuffers;
+    private int maxAllocatedBuffers;           // under pool
+    private final ArrayDeque<byte[]> pool;
+    private int allocated = 0;                 // idle and in use buffers of pool, under pool
+    private int overflowInUse = 0;             // buffers handed out past the cap, under pool
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicLong overflows = new AtomicLong();
+
+    public static BufferPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * shared pool of buffers of another size, e.g. segment transfer steps
+     */
+    public static BufferPool getInstance(int bufferSize) {
+        if (bufferSize == BUFFER_SIZE) return INSTANCE;
+        synchronized (SIZED_POOLS) {
+            for (BufferPool pool : SIZED_POOLS) {
+                if (pool.bufferSize == bufferSize) return pool;
+            }
+            final BufferPool pool = new BufferPool(bufferSize, Math.max(DEFAULT_MAX_POOLED_BYTES, 2L * bufferSize));
+            SIZED_POOLS.add(pool);
+            return pool;
+        }
+    }
+
+    /**
+     * {@link #trim()} every shared pool
+     */
+    public static void trimAll() {
+        INSTANCE.trim();
+        synchronized (SIZED_POOLS) {
+            for (BufferPool pool : SIZED_POOLS) pool.trim();
+        }
+    }
+
+    public BufferPool(int bufferSize, long maxPooledBytes) {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("Invalid buffer size: " + bufferSize);
+        this.bufferSize = bufferSize;
+        this.pool = new ArrayDeque<>();
+        setMaxPooledBytes(maxPooledBytes);
+        setMaxAllocatedBytes(Math.max(maxPooledBytes, DEFAULT_MAX_ALLOCATED_BYTES));
+    }
+
+    public byte[] acquire() {
+        byte[] buffer;
+        synchronized (pool) {
+            buffer = pool.pollFirst();
+            if (buffer == null) {
+                if (allocated < maxAllocatedBuffers) {
+                    allocated++;
+                } else {
+                    overflowInUse++;
+                    overflows.incrementAndGet();
+                }
+            }
+        }
+        inUse.incrementAndGet();
+        if (buffer != null) {
+            hits.incrementAndGet();
+            return buffer;
+        }
+        misses.incrementAndGet();
+        return new byte[bufferSize];
+    }
+
+    /**
+     * @param buffer taken from {@link #acquire()}, buffers of another size are ignored
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null || buffer.length != bufferSize) return;
+        inUse.decrementAndGet();
+        synchronized (pool) {
+            // buffers are alike, any of them pays the overflow back
+            if (overflowInUse > 0) {
+                overflowInUse--;
+            } else if (pool.size() < maxPooledBuffers) {
+                pool.offerFirst(buffer);
+            } else {
+                allocated--;
+            }
+        }
+    }
+
+    /**
+     * release idle buffers, buffers in use go back to the pool as usual
+     */
+    public void trim() {
+        synchronized (pool) {
+            allocated -= pool.size();
+            pool.clear();
+        }
+    }
+
+    /**
+     * cap of pool buffers idle and in use, buffers taken past it are overflow
+     */
+    public void setMaxAllocatedBytes(long maxAllocatedBytes) {
+        if (maxAllocatedBytes < 0)
+            throw new IllegalArgumentException("Invalid allocation cap: " + maxAllocatedBytes);
+        synchronized (pool) {
+            this.maxAllocatedBuffers = (int) Math.min(Integer.MAX_VALUE, maxAllocatedBytes / bufferSize);
+        }
+    }
+
+    public void setMaxPooledBytes(long maxPooledBytes) {
+        if (maxPooledBytes < 0)
+            throw new IllegalArgumentException("Invalid pool size: " + maxPooledBytes);
+        this.maxPooledBuffers = (int) Math.min(Integer.MAX_VALUE, maxPooledBytes / bufferSize);
+        synchronized (pool) {
+            while (pool.size() > maxPooledBuffers) {
+                pool.pollLast();
+                allocated--;
+            }
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public int getInUseCount() {
+        return inUse.get();
+    }
+
+    /**
+     * @return buffers which were taken past the allocation cap
+     */
+    public long getOverflowCount() {
+        return overflows.get();
+    }
+
+    public long getAllocatedBytes() {
+        synchronized (pool) {
+            return (long) (allocated + overflowInUse) * bufferSize;
+        }
+    }
+
+    public long getPooledBytes() {
+        synchronized (pool) {
+            return (long) pool.size() * bufferSize;
+        }
+    }
+}
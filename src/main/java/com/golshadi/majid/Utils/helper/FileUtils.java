@@ -5,6 +5,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 
 public class FileUtils {
 
@@ -36,6 +37,15 @@ public class FileUtils {
         file.delete();
     }
 
+    public static void truncate(String folder, String fileName, long length) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(new File(folder, fileName), "rw");
+        try {
+            if (file.length() > length) file.setLength(length);
+        } finally {
+            file.close();
+        }
+    }
+
     public static long size(String folder, String fileName){
         File file = new File(folder, fileName);
         return file.length();
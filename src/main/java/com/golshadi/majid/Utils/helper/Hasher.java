@@ -0,0 +1,99 @@
+package com.golshadi.majid.Utils.helper;
+
+import com.golshadi.majid.core.enums.DigestAlgorithm;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * One running hash of a {@link DigestAlgorithm}, message digests and CRC32C behind one face.
+ * Not thread safe.
+ */
+public abstract class Hasher {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    public abstract void update(byte[] b, int off, int len);
+
+    /**
+     * @return digest of bytes since creation or last call, hasher starts over
+     */
+    public abstract byte[] digest();
+
+    public static Hasher create(int algorithm) {
+        switch (algorithm) {
+            case DigestAlgorithm.SHA_256:
+                return new MessageDigestHasher("SHA-256");
+            case DigestAlgorithm.MD5:
+                return new MessageDigestHasher("MD5");
+            case DigestAlgorithm.CRC32C:
+                return new Crc32cHasher();
+            default:
+                throw new IllegalArgumentException("Invalid digest algorithm: " + algorithm);
+        }
+    }
+
+    public static String toHex(byte[] digest) {
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = HEX[(digest[i] >> 4) & 0x0f];
+            hex[i * 2 + 1] = HEX[digest[i] & 0x0f];
+        }
+        return new String(hex);
+    }
+
+    private static class MessageDigestHasher extends Hasher {
+
+        private final MessageDigest messageDigest;
+
+        MessageDigestHasher(String name) {
+            try {
+                messageDigest = MessageDigest.getInstance(name);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(name + " isn't available", e);
+            }
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            messageDigest.update(b, off, len);
+        }
+
+        @Override
+        public byte[] digest() {
+            return messageDigest.digest();
+        }
+    }
+
+    /*
+     * Castagnoli polynomial, java.util.zip.CRC32C needs API 26
+     */
+    private static class Crc32cHasher extends Hasher {
+
+        private static final int[] TABLE = new int[256];
+
+        static {
+            for (int n = 0; n < 256; n++) {
+                int c = n;
+                for (int k = 0; k < 8; k++) c = (c & 1) != 0 ? (c >>> 1) ^ 0x82f63b78 : c >>> 1;
+                TABLE[n] = c;
+            }
+        }
+
+        private int crc = 0xffffffff;
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            int c = crc;
+            for (int i = off, end = off + len; i < end; i++) c = TABLE[(c ^ b[i]) & 0xff] ^ (c >>> 8);
+            crc = c;
+        }
+
+        @Override
+        public byte[] digest() {
+            final int value = ~crc;
+            crc = 0xffffffff;
+            return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+        }
+    }
+}
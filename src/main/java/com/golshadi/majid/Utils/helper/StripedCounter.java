@@ -0,0 +1,70 @@
+package com.golshadi.majid.Utils.helper;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter for hot paths that many threads add to, like {@code LongAdder}
+ * which isn't available before API 24.
+ * <p>
+ * Every thread adds to its own cell picked by thread id, cells are padded to
+ * separate cache lines so workers don't contend. No update is ever lost,
+ * {@link #sum()} is exact once writers are quiet.
+ */
+public class StripedCounter {
+
+    private static final int STRIPES = 16; // power of two
+    private static final int PADDING = 8;  // 8 longs, one 64 byte cache line per cell
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    private static int cell() {
+        final long id = Thread.currentThread().getId();
+        return ((int) (id ^ (id >>> 32)) & (STRIPES - 1)) * PADDING;
+    }
+
+    public void add(long n) {
+        cells.addAndGet(cell(), n);
+    }
+
+    /**
+     * add to current thread's cell and return only that cell,
+     * to check a threshold without summing all cells
+     */
+    public long addAndGetCell(long n) {
+        return cells.addAndGet(cell(), n);
+    }
+
+    /**
+     * take current thread's cell, returns what was in it
+     */
+    public long resetCell() {
+        return cells.getAndSet(cell(), 0);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    /**
+     * take all cells, adds racing with this call are counted in the next sum
+     */
+    public long sumThenReset() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.getAndSet(i * PADDING, 0);
+        }
+        return sum;
+    }
+
+    /**
+     * move sum to value by adding the difference, so adds racing with this call
+     * are kept on top of it instead of being wiped with the cells
+     */
+    public void set(long value) {
+        add(value - sum());
+    }
+}
@@ -1,17 +1,34 @@
 package com.golshadi.majid.core;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.os.Environment;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import com.golshadi.majid.Utils.helper.BufferPool;
 import com.golshadi.majid.Utils.helper.FileUtils;
+import com.golshadi.majid.Utils.helper.Hasher;
+import com.golshadi.majid.core.chunkWorker.AdaptiveConnections;
+import com.golshadi.majid.core.chunkWorker.ConnectionBudget;
+import com.golshadi.majid.core.chunkWorker.HedgePolicy;
+import com.golshadi.majid.core.chunkWorker.HostStats;
 import com.golshadi.majid.core.chunkWorker.Moderator;
+import com.golshadi.majid.core.chunkWorker.RetryPolicy;
+import com.golshadi.majid.core.chunkWorker.SingleFileOutput;
+import com.golshadi.majid.core.chunkWorker.TaskInputStream;
+import com.golshadi.majid.core.chunkWorker.TransferOptions;
+import com.golshadi.majid.core.enums.DigestAlgorithm;
 import com.golshadi.majid.core.enums.QueueSort;
+import com.golshadi.majid.core.enums.StorageMode;
 import com.golshadi.majid.core.enums.TaskStates;
 import com.golshadi.majid.core.mainWorker.QueueModerator;
+import com.golshadi.majid.core.mainWorker.TaskExecutor;
+import com.golshadi.majid.core.mainWorker.TaskStateMachine;
 import com.golshadi.majid.database.ChunksDataSource;
 import com.golshadi.majid.database.DatabaseHelper;
+import com.golshadi.majid.database.DatabaseWriter;
 import com.golshadi.majid.database.TasksDataSource;
 import com.golshadi.majid.database.elements.Chunk;
 import com.golshadi.majid.database.elements.Task;
@@ -19,11 +36,13 @@ import com.golshadi.majid.report.ReportStructure;
 import com.golshadi.majid.report.listener.DownloadManagerListener;
 import com.golshadi.majid.report.listener.DownloadManagerListenerModerator;
 import com.golshadi.majid.report.listener.DownloadSpeedListener;
+import com.golshadi.majid.report.listener.ProgressDispatcher;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 import okhttp3.OkHttpClient;
@@ -41,14 +60,21 @@ public class DownloadManagerPro {
     public static final int CONNECT_TIMEOUT = 30;
     public static final int READ_TIMEOUT = 20;
     private static final int MAX_CHUNKS = 16;
+    private static final String CONNECTIONS_PREFERENCES = "download_manager_connections";
 
     private final Moderator moderator;
+    private final TaskExecutor taskExecutor = new TaskExecutor();
+    private final AdaptiveConnections adaptiveConnections;
     private final TasksDataSource tasksDataSource;
     private final ChunksDataSource chunksDataSource;
     private final DatabaseHelper dbHelper;
+    private final DatabaseWriter dbWriter = new DatabaseWriter(); // all db writes
     private final OkHttpClient okHttpClient;
     private final DownloadManagerListenerModerator downloadManagerListener;
     private final QueueModerator queue;
+    private final Context context;
+    private final ComponentCallbacks2 memoryCallbacks;
+    private int storageMode = StorageMode.CHUNK_FILES;
 
     /**
      * <p>
@@ -70,27 +96,58 @@ public class DownloadManagerPro {
 
     public DownloadManagerPro(Context context, int downloadTaskPerTime, OkHttpClient.Builder okhttpBuilder) {
         this.okHttpClient = okhttpBuilder.build();
+        this.context = context.getApplicationContext();
 
         dbHelper = new DatabaseHelper(context);
 
         // ready database data source to access tables
         tasksDataSource = new TasksDataSource();
-        tasksDataSource.openDatabase(dbHelper);
+        tasksDataSource.openDatabase(dbHelper, dbWriter);
 
         chunksDataSource = new ChunksDataSource();
-        chunksDataSource.openDatabase(dbHelper);
+        chunksDataSource.openDatabase(dbHelper, dbWriter);
 
         // moderate chunks to download one task
         downloadManagerListener = new DownloadManagerListenerModerator(context, tasksDataSource);
 
-        moderator = new Moderator(tasksDataSource, chunksDataSource, downloadManagerListener, okHttpClient);
+        moderator = new Moderator(tasksDataSource, chunksDataSource, downloadManagerListener, okHttpClient,
+                taskExecutor);
+        adaptiveConnections = new AdaptiveConnections(
+                context.getSharedPreferences(CONNECTIONS_PREFERENCES, Context.MODE_PRIVATE));
+        moderator.setAdaptiveConnections(adaptiveConnections);
 
         List<Task> unCompletedTasks = tasksDataSource.getUnCompletedTasks(QueueSort.OLDEST_FIRST);
+        // downloading when process died, resume them as paused
+        List<Task> interrupted = new ArrayList<>();
+        for (Task task : unCompletedTasks) {
+            if (moderator.getStateMachine().move(task, TaskStates.DOWNLOADING, TaskStates.PAUSED))
+                interrupted.add(task);
+        }
+        if (!interrupted.isEmpty()) tasksDataSource.updateStates(interrupted, TaskStates.PAUSED);
 
         queue = new QueueModerator(tasksDataSource, chunksDataSource,
-                moderator, unCompletedTasks, downloadTaskPerTime, okHttpClient);
+                moderator, unCompletedTasks, downloadTaskPerTime, okHttpClient, taskExecutor);
         List<ReportStructure> reportStructures = readyTaskList(unCompletedTasks);
         moderator.putAllReport(reportStructures);
+
+        // give idle transfer buffers back when system is low on memory
+        memoryCallbacks = new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+                    BufferPool.trimAll();
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                BufferPool.trimAll();
+            }
+        };
+        this.context.registerComponentCallbacks(memoryCallbacks);
     }
 
     /**
@@ -113,11 +170,9 @@ public class DownloadManagerPro {
         if (!overwrite) {
             saveName = getUniqueName(saveName);
         } else {
-            synchronized (tasksDataSource) {
-                // download tasks with same file output are not accepted, except this task is completed.
-                if (tasksDataSource.containUncompletedTaskWithFileName(saveName))
-                    return -1;
-            }
+            // download tasks with same file output are not accepted, except this task is completed.
+            if (tasksDataSource.containUncompletedTaskWithFileName(saveName))
+                return -1;
             deleteSameDownloadNameTask(saveName);
         }
         chunk = setMaxChunk(chunk);
@@ -130,11 +185,206 @@ public class DownloadManagerPro {
         return task.id;
     }
 
+    /**
+     * storage mode of tasks added after this call, running tasks keep their mode.
+     * default is {@link StorageMode#CHUNK_FILES}
+     *
+     * @param storageMode {@link StorageMode#CHUNK_FILES} or {@link StorageMode#SINGLE_FILE}
+     */
+    public void setStorageMode(int storageMode) {
+        if (storageMode != StorageMode.CHUNK_FILES && storageMode != StorageMode.SINGLE_FILE)
+            throw new IllegalArgumentException("Invalid storage mode: " + storageMode);
+        this.storageMode = storageMode;
+    }
+
+    /**
+     * retry budget and backoff of every chunk, default is {@link RetryPolicy#DEFAULT}
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        moderator.setRetryPolicy(retryPolicy);
+    }
+
+    /**
+     * transfer path and progress granularity of every chunk, default is {@link TransferOptions#DEFAULT}
+     */
+    public void setTransferOptions(TransferOptions transferOptions) {
+        moderator.setTransferOptions(transferOptions);
+    }
+
+    /**
+     * how often progress of running tasks is published to listeners,
+     * default is {@link ProgressDispatcher#DEFAULT_INTERVAL} ms
+     */
+    public void setProgressInterval(long intervalMs) {
+        downloadManagerListener.setProgressInterval(intervalMs);
+    }
+
+    /**
+     * download speed limit shared by all running tasks by their weight
+     *
+     * @param bytesPerSec 0 to remove the limit
+     */
+    public void setBandwidthLimit(long bytesPerSec) {
+        moderator.getBandwidthLimiter().setGlobalLimit(bytesPerSec);
+    }
+
+    /**
+     * @param bytesPerSec 0 to remove task limit
+     */
+    public void setTaskBandwidthLimit(int token, long bytesPerSec) {
+        moderator.getBandwidthLimiter().setTaskLimit(token, bytesPerSec);
+    }
+
+    /**
+     * share of global bandwidth limit, default weight is 1 and 2 for high priority tasks
+     */
+    public void setTaskBandwidthWeight(int token, int weight) {
+        moderator.getBandwidthLimiter().setTaskWeight(token, weight);
+    }
+
+    /**
+     * when slow chunks get a second worker near the end of a task, default is {@link HedgePolicy#DEFAULT}.
+     * use {@link HedgePolicy#NONE} to disable
+     */
+    public void setHedgePolicy(HedgePolicy hedgePolicy) {
+        moderator.setHedgePolicy(hedgePolicy);
+    }
+
+    /**
+     * start tasks with few connections and add more while speed grows, up to task chunk count.
+     * enabled by default, when disabled every task uses all its chunks from the start
+     */
+    public void setAdaptiveConnections(boolean enabled) {
+        moderator.setAdaptiveConnections(enabled ? adaptiveConnections : null);
+    }
+
+    /**
+     * run probing, chunk setup, merge and clean up of tasks on this executor instead of
+     * the default bounded pool. jobs already queued finish on the old one
+     */
+    public void setExecutor(Executor executor) {
+        taskExecutor.setDelegate(executor);
+    }
+
+    /**
+     * queue length, running jobs and wait times of task executor
+     */
+    public TaskExecutor getTaskExecutor() {
+        return taskExecutor;
+    }
+
+    /**
+     * queued, written and coalesced db writes
+     */
+    public DatabaseWriter getDatabaseWriter() {
+        return dbWriter;
+    }
+
+    /**
+     * check task file against its digest, a mismatch fails the task
+     *
+     * @see #setTaskDigests(int, int, String, long, List)
+     */
+    public boolean setTaskDigest(int token, int algorithm, String digest) {
+        return setTaskDigests(token, algorithm, digest, 0, null);
+    }
+
+    /**
+     * check a task while it downloads. single file tasks hash every piece once its chunks
+     * finish and download a bad piece again, whole file digest is fed as the checked part
+     * grows and compared at the end. a mismatch there fails the task.
+     * used from next start of task
+     *
+     * @param algorithm    one of {@link DigestAlgorithm}, NONE to stop checking
+     * @param digest       hex digest of whole file, null for pieces only
+     * @param pieceSize    bytes of every piece but the last
+     * @param pieceDigests hex digest of every piece in file order, null for whole file only
+     * @return false if task doesn't exist, or it's downloading or finished
+     */
+    public boolean setTaskDigests(int token, int algorithm, @Nullable String digest, long pieceSize,
+                                  @Nullable List<String> pieceDigests) {
+        if (algorithm != DigestAlgorithm.NONE) Hasher.create(algorithm);
+        if (pieceDigests != null && pieceSize <= 0)
+            throw new IllegalArgumentException("Invalid piece size: " + pieceSize);
+
+        final Task task = tasksDataSource.getTaskInfo(token);
+        if (task.url == null || task.state == TaskStates.DOWNLOADING
+                || task.state == TaskStates.DOWNLOAD_FINISHED || task.state == TaskStates.END)
+            return false;
+        task.digestAlgorithm = algorithm;
+        task.digest = algorithm == DigestAlgorithm.NONE ? null : digest;
+        task.pieceSize = pieceDigests == null ? 0 : pieceSize;
+        if (algorithm == DigestAlgorithm.NONE || pieceDigests == null) {
+            task.pieceDigests = null;
+        } else {
+            StringBuilder joined = new StringBuilder();
+            for (String pieceDigest : pieceDigests) {
+                if (joined.length() > 0) joined.append(',');
+                joined.append(pieceDigest);
+            }
+            task.pieceDigests = joined.toString();
+        }
+        tasksDataSource.update(task);
+        moderator.forgetVerifier(token);
+        return true;
+    }
+
     public void setDownloadTaskPerTime(int downloadTaskPerTime) {
         queue.setDownloadTaskPerTime(downloadTaskPerTime);
         if (isQueueStarted()) queue.startQueue();
     }
 
+    /**
+     * change start order of a queued task at runtime, bigger priority starts first.
+     * chunks of a running task get freed connections by this priority too
+     *
+     * @return false if task isn't in queue
+     */
+    public boolean setTaskPriority(int token, int priority) {
+        moderator.setTaskPriority(token, priority);
+        return queue.setTaskPriority(token, priority);
+    }
+
+    /**
+     * connections open at once across all running tasks, default is
+     * {@link ConnectionBudget#DEFAULT_MAX_CONNECTIONS}. chunks beyond it wait for a free one
+     */
+    public void setMaxConnections(int maxConnections) {
+        moderator.setMaxConnections(maxConnections);
+    }
+
+    /**
+     * connections open at once to one host, default is max requests per host of OkHttp
+     * dispatcher. hosts with waiting chunks take turns on freed connections
+     */
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        moderator.setMaxConnectionsPerHost(maxConnectionsPerHost);
+    }
+
+    /**
+     * throughput, open connections and failures of every host in this session
+     */
+    public HostStats getHostStats() {
+        return moderator.getHostStats();
+    }
+
+    /**
+     * queued tasks with same priority start by earlier deadline
+     *
+     * @return false if task isn't in queue
+     */
+    public boolean setTaskDeadline(int token, long deadline) {
+        return queue.setTaskDeadline(token, deadline);
+    }
+
+    /**
+     * queued tasks with same priority and deadline start smallest first instead of
+     * oldest first. off by default, large tasks may wait as long as smaller ones keep coming
+     */
+    public void setSmallestFirst(boolean smallestFirst) {
+        queue.setSmallestFirst(smallestFirst);
+    }
+
     public void startQueueDownload() {
         queue.startQueue();
     }
@@ -151,10 +401,40 @@ public class DownloadManagerPro {
         return queue;
     }
 
+    /**
+     * read a task while it downloads, with a window of {@link TaskInputStream#DEFAULT_WINDOW_SIZE}
+     */
+    public TaskInputStream openStream(int token) {
+        return openStream(token, TaskInputStream.DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * read a task while it downloads. while stream is open, chunks are downloaded in file
+     * order from its position up to window size ahead and reads of missing bytes block.
+     * a seek moves the download there. task must be started to make progress
+     *
+     * @param token      when you add a new download task it's return to you
+     * @param windowSize bytes ahead of read position to download
+     */
+    public TaskInputStream openStream(int token, long windowSize) {
+        return moderator.openStream(token, windowSize);
+    }
+
     public void setDownloadManagerListener(DownloadManagerListener listener) {
         downloadManagerListener.setDownloadManagerListener(listener);
     }
 
+    /**
+     * hear every task state change, on the thread which made it
+     */
+    public void addOnStateChangedListener(TaskStateMachine.OnStateChanged listener) {
+        moderator.getStateMachine().addListener(listener);
+    }
+
+    public void removeOnStateChangedListener(TaskStateMachine.OnStateChanged listener) {
+        moderator.getStateMachine().removeListener(listener);
+    }
+
     public void setDownloadSpeedListener(DownloadSpeedListener listener) {
         downloadManagerListener.setDownloadSpeedListener(listener);
     }
@@ -193,6 +473,7 @@ public class DownloadManagerPro {
                 throw new IllegalArgumentException("Invalid task: " + token);
             }
         }
+        report.getDownloadedLength(); // refresh progress snapshot
         return report;
     }
 
@@ -263,7 +544,7 @@ public class DownloadManagerPro {
      * @return true or false
      */
     public boolean notifiedTaskChecked() {
-        return tasksDataSource.checkUnNotifiedTasks();
+        return DatabaseWriter.await(tasksDataSource.checkUnNotifiedTasks(), false);
     }
 
 
@@ -278,6 +559,9 @@ public class DownloadManagerPro {
      */
     public boolean delete(int token, boolean deleteTaskFile) {
         moderator.pause(token);
+        moderator.forgetMerge(token);
+        moderator.forgetVerifier(token);
+        moderator.getBandwidthLimiter().removeTask(token);
         queue.removeTask(token);
         final Task task = tasksDataSource.getTaskInfo(token);
         if (task.url != null) {
@@ -285,17 +569,19 @@ public class DownloadManagerPro {
                     chunksDataSource.chunksRelatedTask(task.id);
             for (Chunk chunk : taskChunks) {
                 FileUtils.delete(task.save_address, ChunksDataSource.getChunkFileName(chunk.id));
-                chunksDataSource.delete(chunk.id);
             }
+            chunksDataSource.deleteChunksOfTask(task.id);
 
-            if (deleteTaskFile) {
+            // output file is written while downloading, chunk files are merged into it early
+            if (deleteTaskFile || task.state != TaskStates.END) {
                 long size = FileUtils.size(task.save_address, task.name);
                 if (size > 0) {
                     FileUtils.delete(task.save_address, task.name);
                 }
             }
+            if (task.storageMode == StorageMode.SINGLE_FILE) SingleFileOutput.delete(task);
 
-            return tasksDataSource.delete(task.id);
+            return DatabaseWriter.await(tasksDataSource.delete(task.id), false);
         }
         return false;
     }
@@ -307,10 +593,14 @@ public class DownloadManagerPro {
      * you have to call this method to disconnect from db
      */
     public void dispose() {
+        context.unregisterComponentCallbacks(memoryCallbacks);
         pauseQueueDownload();
-        dbHelper.close();
+        // pause events are delivered, events may still read task rows
+        downloadManagerListener.shutdown();
         downloadManagerListener.setDownloadManagerListener(null);
         downloadManagerListener.setDownloadSpeedListener(null);
+        dbWriter.close();
+        dbHelper.close();
     }
 
 
@@ -322,6 +612,7 @@ public class DownloadManagerPro {
                                long fileSize) {
         Task task = new Task(0, fileName, url, TaskStates.INIT, chunk, save_address, priority, jsonExtra);
         task.size = fileSize;
+        task.storageMode = storageMode;
         task.id = (int) tasksDataSource.insertTask(task);
         Log.d("--------", "task id " + String.valueOf(task.id));
         return task;
@@ -368,6 +659,7 @@ public class DownloadManagerPro {
             moderator.pause(task.id);
             tasksDataSource.delete(task.id);
             FileUtils.delete(task.save_address, task.name);
+            SingleFileOutput.delete(task);
         }
     }
 }
@@ -0,0 +1,134 @@
+package com.golshadi.majid.core.bandwidth;
+
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Global and per task download speed limits.
+ * <p>
+ * Every running task has a {@link TokenBucket} shared by its chunk workers. When a
+ * global limit is set it's divided between running tasks by their weight, a task with
+ * its own lower limit keeps that limit and the rest is shared by the other tasks.
+ * Buckets are recalculated only when limits, weights or running tasks change.
+ */
+public class BandwidthLimiter {
+
+    public static final long UNLIMITED = 0;
+    public static final int DEFAULT_WEIGHT = 1;
+    public static final int HIGH_PRIORITY_WEIGHT = 2;
+
+    private static final TokenBucket NO_LIMIT = new TokenBucket(UNLIMITED);
+
+    private static class TaskShare {
+        int weight = DEFAULT_WEIGHT;
+        boolean customWeight;
+        long limit = UNLIMITED;
+        boolean running;
+        final TokenBucket bucket = new TokenBucket(UNLIMITED);
+    }
+
+    private long globalLimit = UNLIMITED;
+    private final SparseArray<TaskShare> shares = new SparseArray<>();
+
+    public synchronized void setGlobalLimit(long bytesPerSec) {
+        this.globalLimit = Math.max(UNLIMITED, bytesPerSec);
+        recalculate();
+    }
+
+    public synchronized long getGlobalLimit() {
+        return globalLimit;
+    }
+
+    public synchronized void setTaskLimit(int taskId, long bytesPerSec) {
+        getShare(taskId).limit = Math.max(UNLIMITED, bytesPerSec);
+        recalculate();
+    }
+
+    public synchronized void setTaskWeight(int taskId, int weight) {
+        if (weight < 1)
+            throw new IllegalArgumentException("Invalid weight: " + weight);
+        TaskShare share = getShare(taskId);
+        share.weight = weight;
+        share.customWeight = true;
+        recalculate();
+    }
+
+    /**
+     * @param weight share of global limit, unless {@link #setTaskWeight} set one
+     */
+    public synchronized void taskStarted(int taskId, int weight) {
+        TaskShare share = getShare(taskId);
+        share.running = true;
+        if (!share.customWeight) share.weight = Math.max(1, weight);
+        recalculate();
+    }
+
+    public synchronized void taskStopped(int taskId) {
+        TaskShare share = shares.get(taskId);
+        if (share == null) return;
+        share.running = false;
+        // keep only task settings
+        if (share.limit == UNLIMITED && !share.customWeight) shares.remove(taskId);
+        recalculate();
+    }
+
+    public synchronized void removeTask(int taskId) {
+        shares.remove(taskId);
+        recalculate();
+    }
+
+    /**
+     * bucket for chunk workers of this task, workers take it once per attempt
+     */
+    public synchronized TokenBucket getBucket(int taskId) {
+        TaskShare share = shares.get(taskId);
+        return share != null && share.running ? share.bucket : NO_LIMIT;
+    }
+
+    // must hold this
+    private TaskShare getShare(int taskId) {
+        TaskShare share = shares.get(taskId);
+        if (share == null) {
+            share = new TaskShare();
+            shares.put(taskId, share);
+        }
+        return share;
+    }
+
+    // must hold this
+    private void recalculate() {
+        List<TaskShare> pending = new ArrayList<>();
+        for (int i = 0; i < shares.size(); i++) {
+            if (shares.valueAt(i).running) pending.add(shares.valueAt(i));
+        }
+
+        if (globalLimit == UNLIMITED) {
+            for (TaskShare share : pending) share.bucket.setRate(share.limit);
+            return;
+        }
+
+        // tasks limited below their fair share keep their limit, rest is shared again
+        long remaining = globalLimit;
+        boolean capped = true;
+        while (capped && !pending.isEmpty()) {
+            capped = false;
+            long totalWeight = 0;
+            for (TaskShare share : pending) totalWeight += share.weight;
+            for (int i = pending.size() - 1; i >= 0; i--) {
+                TaskShare share = pending.get(i);
+                if (share.limit != UNLIMITED && share.limit <= remaining * share.weight / totalWeight) {
+                    share.bucket.setRate(share.limit);
+                    remaining -= share.limit;
+                    pending.remove(i);
+                    capped = true;
+                }
+            }
+            if (!capped) {
+                for (TaskShare share : pending)
+                    share.bucket.setRate(Math.max(1, remaining * share.weight / totalWeight));
+            }
+        }
+    }
+}
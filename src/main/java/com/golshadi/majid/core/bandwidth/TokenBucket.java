@@ -0,0 +1,70 @@
+package com.golshadi.majid.core.bandwidth;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Token bucket of one task. Workers take tokens after every read and sleep when the
+ * bucket is in debt, a slow reader makes TCP slow down the sender.
+ * <p>
+ * Unlimited bucket costs one volatile read per call, it never locks.
+ */
+public class TokenBucket {
+
+    // burst allowed after idle time
+    private static final long MIN_CAPACITY = 64 * 1024;
+
+    private volatile long rate;  // bytes per second, 0 is unlimited
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(long rate) {
+        this.lastRefill = System.nanoTime();
+        setRate(rate);
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    public synchronized void setRate(long rate) {
+        refill(System.nanoTime());
+        this.rate = Math.max(0, rate);
+        this.tokens = Math.min(tokens, capacity());
+    }
+
+    /**
+     * take tokens of read bytes, block until bucket has no debt
+     */
+    public void consume(long bytes) throws InterruptedIOException {
+        if (rate <= 0) return;
+
+        long waitNanos;
+        synchronized (this) {
+            final long rate = this.rate;
+            if (rate <= 0) return;
+            refill(System.nanoTime());
+            tokens -= bytes;
+            waitNanos = tokens < 0 ? (long) (-tokens * 1000000000L / rate) : 0;
+        }
+        if (waitNanos <= 0) return;
+
+        try {
+            Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttling");
+        }
+    }
+
+    // must hold this
+    private void refill(long now) {
+        if (rate > 0) {
+            tokens = Math.min(capacity(), tokens + (now - lastRefill) * rate / 1000000000.0);
+        }
+        lastRefill = now;
+    }
+
+    private long capacity() {
+        return Math.max(MIN_CAPACITY, rate / 10);
+    }
+}
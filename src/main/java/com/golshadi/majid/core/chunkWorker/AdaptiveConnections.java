@@ -0,0 +1,190 @@
+package com.golshadi.majid.core.chunkWorker;
+
+import android.content.SharedPreferences;
+import android.support.annotation.Nullable;
+import android.util.SparseArray;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Number of connections of a task, found AIMD style from measured throughput.
+ * <p>
+ * A task starts with few chunks. While its speed keeps growing by at least
+ * {@link #MIN_GAIN} after adding a connection, one more chunk is split off. When
+ * an added connection doesn't pay off, the target goes one back and probing waits
+ * {@link #PROBE_BACKOFF} ms. When speed falls well below the best seen, or the server
+ * answers busy, the target is halved. Connections above target are not killed,
+ * they just aren't replaced when they finish.
+ * <p>
+ * Best connection count of every host is remembered, new tasks on that host start
+ * from it.
+ */
+public class AdaptiveConnections {
+
+    public static final int INITIAL_CONNECTIONS = 2;
+    public static final long EVALUATION_INTERVAL = 1000;  // ms
+    static final long SETTLE_TIME = 5000;                  // ms, a full speed window after a change
+    static final long PROBE_BACKOFF = 30000;               // ms
+    static final double MIN_GAIN = 0.10;                   // 10% faster to keep a new connection
+    static final double DROP_RATIO = 0.6;                  // halve when speed < 60% of best
+
+    private static final String HOST_KEY_PREFIX = "connections_";
+
+    private static class TaskState {
+        final String host;
+        final int ceiling;
+        int target;
+        int goodConnections;     // connections when speed last improved
+        long baseline = -1;      // speed before last increase, -1 when not probing
+        long bestSpeed = 0;
+        long lastChange;
+        long holdUntil = 0;
+
+        TaskState(String host, int ceiling, int target, long now) {
+            this.host = host;
+            this.ceiling = ceiling;
+            this.target = target;
+            this.goodConnections = target;
+            this.lastChange = now;
+        }
+    }
+
+    private final SparseArray<TaskState> tasks = new SparseArray<>();
+    private final Map<String, Integer> hostConnections = new HashMap<>();
+    private final @Nullable SharedPreferences preferences;
+
+    public AdaptiveConnections(@Nullable SharedPreferences preferences) {
+        this.preferences = preferences;
+    }
+
+    /**
+     * chunks to create for a new task, remembered count of its host or {@link #INITIAL_CONNECTIONS}
+     */
+    public int initialConnections(String url, int ceiling) {
+        final String host = HostStats.hostOf(url);
+        int connections = INITIAL_CONNECTIONS;
+        if (host != null) {
+            synchronized (hostConnections) {
+                Integer remembered = hostConnections.get(host);
+                if (remembered == null && preferences != null) {
+                    remembered = preferences.getInt(HOST_KEY_PREFIX + host, INITIAL_CONNECTIONS);
+                    hostConnections.put(host, remembered);
+                }
+                if (remembered != null) connections = remembered;
+            }
+        }
+        return Math.max(1, Math.min(ceiling, connections));
+    }
+
+    public void taskStarted(int taskId, String url, int ceiling, int connections, long now) {
+        synchronized (tasks) {
+            tasks.put(taskId, new TaskState(HostStats.hostOf(url), Math.max(ceiling, connections),
+                    Math.max(1, connections), now));
+        }
+    }
+
+    /**
+     * forget task, remember its best connection count for its host
+     */
+    public void taskStopped(int taskId) {
+        final TaskState state;
+        synchronized (tasks) {
+            state = tasks.get(taskId);
+            tasks.remove(taskId);
+        }
+        if (state == null || state.host == null || state.bestSpeed == 0) return;
+
+        synchronized (hostConnections) {
+            hostConnections.put(state.host, state.goodConnections);
+        }
+        if (preferences != null)
+            preferences.edit().putInt(HOST_KEY_PREFIX + state.host, state.goodConnections).apply();
+        Timber.d("[%d] %s works best with %d connections", taskId, state.host, state.goodConnections);
+    }
+
+    /**
+     * @return false if a finished worker shouldn't be replaced by splitting another chunk
+     */
+    public boolean wantsConnection(int taskId, int running) {
+        synchronized (tasks) {
+            final TaskState state = tasks.get(taskId);
+            return state == null || running < state.target;
+        }
+    }
+
+    /**
+     * server or link is overloaded, e.g. HTTP 429/503
+     */
+    public void congested(int taskId, long now) {
+        synchronized (tasks) {
+            final TaskState state = tasks.get(taskId);
+            if (state == null) return;
+            state.target = Math.max(1, state.target / 2);
+            state.goodConnections = Math.min(state.goodConnections, state.target);
+            state.baseline = -1;
+            state.lastChange = now;
+            state.holdUntil = now + PROBE_BACKOFF;
+            Timber.d("[%d] Congested, connections target %d", taskId, state.target);
+        }
+    }
+
+    /**
+     * evaluate task speed with current connections
+     *
+     * @return target connection count, or -1 if task isn't tracked
+     */
+    public int update(int taskId, long speed, int running, long now) {
+        synchronized (tasks) {
+            final TaskState state = tasks.get(taskId);
+            if (state == null) return -1;
+
+            // a changed connection count needs a full window to show in speed
+            if (now - state.lastChange < SETTLE_TIME) return state.target;
+
+            if (state.bestSpeed > 0 && speed < state.bestSpeed * DROP_RATIO) {
+                // multiplicative decrease
+                state.target = Math.max(1, state.target / 2);
+                state.goodConnections = Math.min(state.goodConnections, state.target);
+                state.bestSpeed = speed;
+                state.baseline = -1;
+                state.lastChange = now;
+                state.holdUntil = now + PROBE_BACKOFF;
+                Timber.d("[%d] Speed dropped to %d B/s, connections target %d", taskId, speed, state.target);
+                return state.target;
+            }
+            if (speed > state.bestSpeed) state.bestSpeed = speed;
+
+            if (state.baseline >= 0 && running < state.target) {
+                // no chunk was big enough to split, nothing to measure
+                state.target = Math.max(1, running);
+                state.baseline = -1;
+                state.holdUntil = now + PROBE_BACKOFF;
+            }
+
+            if (state.baseline >= 0) {
+                if (speed < state.baseline * (1 + MIN_GAIN)) {
+                    // saturated, last connection didn't pay off
+                    state.target = Math.max(1, running - 1);
+                    state.baseline = -1;
+                    state.lastChange = now;
+                    state.holdUntil = now + PROBE_BACKOFF;
+                    Timber.d("[%d] Saturated at %d B/s, connections target %d", taskId, speed, state.target);
+                    return state.target;
+                }
+                state.goodConnections = running;
+                state.baseline = -1;
+            }
+
+            // additive increase
+            if (now >= state.holdUntil && running >= state.target && running < state.ceiling) {
+                state.baseline = speed;
+                state.target = running + 1;
+                state.lastChange = now;
+            }
+            return state.target;
+        }
+    }
+}
@@ -1,20 +1,29 @@
 package com.golshadi.majid.core.chunkWorker;
 
+import android.os.SystemClock;
+
+import com.golshadi.majid.Utils.helper.BufferPool;
+import com.golshadi.majid.core.bandwidth.TokenBucket;
 import com.golshadi.majid.database.ChunksDataSource;
 import com.golshadi.majid.database.elements.Chunk;
 import com.golshadi.majid.database.elements.Task;
+import com.golshadi.majid.report.ThroughputMeter;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
 
 import io.reactivex.Completable;
+import io.reactivex.CompletableEmitter;
+import io.reactivex.Flowable;
 import okhttp3.Call;
 import okhttp3.Callback;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSource;
 import timber.log.Timber;
 
 /**
@@ -24,7 +33,7 @@ public class AsyncWorker {
 
     public static final int MAX_RETRY = 2;
     public static final String TAG = "AsyncWorker";
-    private static final int BUFFER_SIZE = 32 * 1024; // 32KB
+    private static final long CHECKPOINT_SIZE = 4 * 1024 * 1024; // 4MB
 
 //    private final Task task;
 //    private final Chunk chunk;
@@ -38,48 +47,59 @@ public class AsyncWorker {
     public synchronized static Completable createAsyncWorker(final Task task, final Chunk chunk,
                                                              final ChunksDataSource chunksDataSource,
                                                              final Moderator moderator,
-                                                             final OkHttpClient okHttpClient) {
+                                                             final OkHttpClient okHttpClient,
+                                                             final RetryPolicy retryPolicy,
+                                                             final TransferOptions transferOptions) {
         return Completable.create(emitter -> {
             if (chunk.completed) {
                 emitter.onComplete();
                 return;
             }
+            // resume from bytes really written, retries mustn't trust the last attempt
+            try {
+                moderator.restoreChunkOffset(task, chunk);
+            } catch (IOException e) {
+                emitter.onError(e);
+                return;
+            }
             Request.Builder requestBuilder = new Request.Builder().get().url(task.url);
             if (task.resumable) // support unresumable links
-                requestBuilder.header("Range", "bytes=" + chunk.begin + "-" + chunk.end);
-            File chunkFile = new File(task.save_address, ChunksDataSource.getChunkFileName(chunk.id));
+                requestBuilder.header("Range", "bytes=" + (chunk.begin + chunk.downloaded) + "-" + chunk.end);
+            final ThroughputMeter meter = moderator.getChunkMeter(task.id, chunk.id);
+            meter.begin(chunk.downloaded, SystemClock.elapsedRealtime());
             okHttpClient.newCall(requestBuilder.build()).enqueue(new Callback() {
                 @Override
                 public void onFailure(Call call, IOException e) {
-                    emitter.onError(e);
+                    if (!emitter.isDisposed()) emitter.onError(e);
                 }
 
                 @Override
                 public void onResponse(Call call, Response response) throws IOException {
                     if (emitter.isDisposed()) return;
-                    FileOutputStream chunkOutStream = null;
+                    OutputStream chunkOutStream = null;
                     try {
                         if (!response.isSuccessful()) {
+                            // too many requests, service unavailable
+                            if (response.code() == 429 || response.code() == 503)
+                                moderator.serverBusy(task.id);
                             emitter.onError(new IOException("Given URL response non-success status code: "
                                     + response.code() + ", " + response.message()));
                             return;
                         }
-                        chunkOutStream = new FileOutputStream(chunkFile, true);
-                        InputStream inputStream = response.body().byteStream();
-                        int len;
-                        byte[] buffer = new byte[BUFFER_SIZE];
-                        while (true) {
-                            // cancelled
-                            if (emitter.isDisposed()) return;
-
-                            // completed
-                            if ((len = inputStream.read(buffer, 0, BUFFER_SIZE)) < 0) break;
-
-                            chunkOutStream.write(buffer, 0, len);
-                            moderator.process(task.id, len);
-                        }
+                        chunkOutStream = moderator.openChunkOutput(task, chunk);
+                        boolean completed = transferOptions.segmentTransfer
+                                ? copySegments(emitter, task, chunk, moderator, meter, response, chunkOutStream, transferOptions)
+                                : copyStream(emitter, task, chunk, moderator, meter, response, chunkOutStream, transferOptions);
+                        if (!completed) return;
+                        // body ended early, a retry fetches the rest instead of leaving a hole
+                        if (task.resumable && task.size > 0
+                                && chunk.begin + chunk.downloaded < Math.min(chunk.end + 1, task.size))
+                            throw new IOException("Response ended at " + (chunk.begin + chunk.downloaded)
+                                    + " before chunk end " + chunk.end);
                         chunk.completed = true;
                         emitter.onComplete();
+                    } catch (IOException e) {
+                        if (!emitter.isDisposed()) emitter.onError(e);
                     } finally {
                         try {
                             response.close();
@@ -92,15 +112,30 @@ public class AsyncWorker {
         })
                 .doOnSubscribe(disposable -> Timber.d("[%d, %d] Start download chunk", task.id, chunk.id))
                 .doOnDispose(() -> Timber.d("[%d, %d] Disposed chunk download", task.id, chunk.id))
-                .doOnError(error -> Timber.e("[%d, %d] Download chunk error", task.id, chunk.id))
+                .doOnError(error -> {
+                    Timber.e("[%d, %d] Download chunk error", task.id, chunk.id);
+                    moderator.connectionFailed(task.id);
+                })
                 .doOnComplete(() -> {
                     if (chunk.completed) {
+                        // lost the race against a hedged copy of this range
+                        if (!moderator.resolveHedge(task, chunk)) return;
                         Timber.d("[%d, %d] Download chunk completed", task.id, chunk.id);
                         chunksDataSource.markChunkAsCompleted(chunk);
+                        moderator.stealWork(task, chunk);
                         moderator.rebuild(chunk);
                     }
                 })
-                .retry(MAX_RETRY)
+                .retryWhen(errors -> {
+                    final RetryPolicy.Budget budget = retryPolicy.newBudget(chunk.downloaded);
+                    return errors.flatMap(error -> {
+                        // un resumable chunk starts over, it never makes progress
+                        long delay = budget.nextDelay(task.resumable ? chunk.downloaded : 0);
+                        if (delay < 0) return Flowable.error(error);
+                        Timber.w("[%d, %d] Retry chunk in %d ms: %s", task.id, chunk.id, delay, error.getMessage());
+                        return Flowable.timer(delay, TimeUnit.MILLISECONDS).cast(Object.class);
+                    });
+                })
                 .onErrorResumeNext(error -> {
                     // Moderator didn't handle complete or error state by observable chain
                     // use callback method instead
@@ -109,6 +144,134 @@ public class AsyncWorker {
                 });
     }
 
+    /*
+     * read body stream into a pooled buffer and write it
+     * return false if cancelled
+     */
+    private static boolean copyStream(CompletableEmitter emitter, Task task, Chunk chunk, Moderator moderator,
+                                      ThroughputMeter meter, Response response, OutputStream chunkOutStream,
+                                      TransferOptions transferOptions) throws IOException {
+        final BufferPool bufferPool = BufferPool.getInstance();
+        final TokenBucket throttle = moderator.getBandwidthLimiter().getBucket(task.id);
+        byte[] buffer = bufferPool.acquire();
+        try {
+            InputStream inputStream = response.body().byteStream();
+            int len;
+            long checkpoint = chunk.downloaded;
+            long unreported = 0;
+            boolean firstRead = true;
+            while (true) {
+                // cancelled
+                if (emitter.isDisposed()) {
+                    // lost to a hedge, Moderator took all written bytes off the progress
+                    if (chunk.completed && unreported > 0) moderator.process(task.id, unreported);
+                    return false;
+                }
+
+                // completed
+                if ((len = inputStream.read(buffer, 0, buffer.length)) < 0) break;
+                throttle.consume(len);
+
+                // Moderator may split this chunk, never write past its end
+                synchronized (chunk) {
+                    if (task.resumable)
+                        len = (int) Math.min(len, chunk.end - (chunk.begin + chunk.downloaded) + 1);
+                    if (len > 0) {
+                        chunkOutStream.write(buffer, 0, len);
+                        chunk.downloaded += len;
+                    }
+                }
+                if (len <= 0) break;
+
+                unreported += len;
+                if (unreported >= transferOptions.progressGranularity || firstRead) {
+                    moderator.process(task.id, unreported);
+                    meter.record(chunk.downloaded, SystemClock.elapsedRealtime());
+                    unreported = 0;
+                    firstRead = false;
+                }
+
+                if (chunk.downloaded - checkpoint >= CHECKPOINT_SIZE) {
+                    checkpoint = chunk.downloaded;
+                    moderator.checkpoint(task, chunk);
+                }
+            }
+            if (unreported > 0) moderator.process(task.id, unreported);
+            return true;
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /*
+     * gather Okio segments of body source into one pooled buffer of segmentSize,
+     * one write per step instead of one per 8KB segment or 32KB read.
+     * single file output writes it with one positional channel write
+     * return false if cancelled
+     */
+    private static boolean copySegments(CompletableEmitter emitter, Task task, Chunk chunk, Moderator moderator,
+                                        ThroughputMeter meter, Response response, OutputStream chunkOutStream,
+                                        TransferOptions transferOptions) throws IOException {
+        final BufferedSource source = response.body().source();
+        final Buffer segments = new Buffer();
+        // same array every step, single file output wraps it once
+        final BufferPool stepPool = BufferPool.getInstance(transferOptions.segmentSize);
+        final byte[] step = stepPool.acquire();
+        final TokenBucket throttle = moderator.getBandwidthLimiter().getBucket(task.id);
+        long checkpoint = chunk.downloaded;
+        long unreported = 0;
+        boolean firstRead = true;
+        try {
+            while (true) {
+                // cancelled
+                if (emitter.isDisposed()) {
+                    // lost to a hedge, Moderator took all written bytes off the progress
+                    if (chunk.completed && unreported > 0) moderator.process(task.id, unreported);
+                    return false;
+                }
+
+                // wait for a whole segment, completed if nothing left
+                source.request(transferOptions.segmentSize);
+                if (source.read(segments, transferOptions.segmentSize) < 0) break;
+                throttle.consume(segments.size());
+
+                int len = 0;
+                while (len < step.length && segments.size() > 0) {
+                    len += segments.read(step, len, step.length - len);
+                }
+                // Moderator may split this chunk, never write past its end
+                synchronized (chunk) {
+                    if (task.resumable)
+                        len = (int) Math.min(len, chunk.end - (chunk.begin + chunk.downloaded) + 1);
+                    if (len > 0) {
+                        chunkOutStream.write(step, 0, len);
+                        chunk.downloaded += len;
+                    }
+                }
+                if (len <= 0) break;
+
+                unreported += len;
+                if (unreported >= transferOptions.progressGranularity || firstRead) {
+                    moderator.process(task.id, unreported);
+                    meter.record(chunk.downloaded, SystemClock.elapsedRealtime());
+                    unreported = 0;
+                    firstRead = false;
+                }
+
+                if (chunk.downloaded - checkpoint >= CHECKPOINT_SIZE) {
+                    checkpoint = chunk.downloaded;
+                    moderator.checkpoint(task, chunk);
+                }
+            }
+            if (unreported > 0) moderator.process(task.id, unreported);
+            return true;
+        } finally {
+            // bytes past chunk end
+            segments.clear();
+            stepPool.release(step);
+        }
+    }
+
 
 //    public AsyncWorker(Task task, Chunk chunk, Moderator moderator) {
 //        buffer = new byte[BUFFER_SIZE];
@@ -0,0 +1,246 @@
+package com.golshadi.majid.core.chunkWorker;
+
+import android.util.SparseArray;
+
+import com.golshadi.majid.core.mainWorker.TaskScheduler;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Connections open at once across all running tasks, and to each host.
+ * <p>
+ * A chunk worker takes a permit before it connects and gives it back when it ends.
+ * Chunks beyond the budget, or beyond the cap of their host, wait. A freed permit goes
+ * to the waiting chunk of the highest priority task, oldest first within a priority,
+ * among hosts under their cap. Hosts with waiting chunks of same priority take turns,
+ * so a slow host holding its connections doesn't starve the others. Lowering a limit
+ * doesn't close connections, permits are just not handed out again until usage drops
+ * below it. Not thread safe, {@link Moderator} guards it with its worker list.
+ */
+public class ConnectionBudget {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 16;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 5; // same as OkHttp dispatcher
+
+    private static final String UNKNOWN_HOST = "";
+
+    private static class Waiter implements Comparable<Waiter> {
+        final int taskId;
+        final int chunkId;
+        final String host;
+        final long sequence;
+        int priority;
+
+        Waiter(int taskId, int chunkId, String host, int priority, long sequence) {
+            this.taskId = taskId;
+            this.chunkId = chunkId;
+            this.host = host;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            if (priority != other.priority) return priority > other.priority ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private static class HostQueue {
+        final PriorityQueue<Waiter> waiting = new PriorityQueue<>();
+        int used = 0;
+        long lastGrant = -1; // turn of last granted permit, longest ago goes first
+    }
+
+    private final Map<String, HostQueue> hosts = new HashMap<>();
+    private final SparseArray<Waiter> waiters = new SparseArray<>();  // chunk id -> waiter
+    private final SparseArray<String> holders = new SparseArray<>();  // chunk id -> host
+    private final SparseArray<Integer> taskPriorities = new SparseArray<>();
+    private int maxConnections;
+    private int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private long nextSequence = 0;
+    private long nextGrant = 0;
+
+    public ConnectionBudget(int maxConnections) {
+        setMaxConnections(maxConnections);
+    }
+
+    /**
+     * call {@link #grantNext()} after raising it, waiting chunks may start now
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections < 1) throw new IllegalArgumentException("Invalid max connections: " + maxConnections);
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * call {@link #grantNext()} after raising it, waiting chunks may start now
+     */
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        if (maxConnectionsPerHost < 1)
+            throw new IllegalArgumentException("Invalid max connections per host: " + maxConnectionsPerHost);
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * chunks of task wait by this priority, bigger goes first. default is
+     * {@link TaskScheduler#PRIORITY_NORMAL}
+     */
+    public void setTaskPriority(int taskId, int priority) {
+        taskPriorities.put(taskId, priority);
+        for (int i = 0; i < waiters.size(); i++) {
+            final Waiter waiter = waiters.valueAt(i);
+            if (waiter.taskId != taskId || waiter.priority == priority) continue;
+            // reorder
+            final HostQueue queue = hosts.get(waiter.host);
+            queue.waiting.remove(waiter);
+            waiter.priority = priority;
+            queue.waiting.add(waiter);
+        }
+    }
+
+    public void taskStopped(int taskId) {
+        taskPriorities.remove(taskId);
+    }
+
+    /**
+     * take a permit for chunk, or queue it if none is free
+     *
+     * @param host null if unknown, such chunks share one cap
+     * @return true if chunk can connect now, otherwise it's granted by {@link #grantNext()} later
+     */
+    public boolean acquire(int taskId, int chunkId, String host) {
+        if (holders.get(chunkId) != null) return true;
+        if (host == null) host = UNKNOWN_HOST;
+        HostQueue queue = hosts.get(host);
+        if (queue == null) {
+            queue = new HostQueue();
+            hosts.put(host, queue);
+        }
+        // free permits are always granted right away, so nobody else can use this one
+        if (holders.size() < maxConnections && queue.used < maxConnectionsPerHost && queue.waiting.isEmpty()) {
+            grant(chunkId, host, queue);
+            return true;
+        }
+        if (waiters.get(chunkId) == null) {
+            final Waiter waiter = new Waiter(taskId, chunkId, host,
+                    taskPriorities.get(taskId, TaskScheduler.PRIORITY_NORMAL), nextSequence++);
+            waiters.put(chunkId, waiter);
+            queue.waiting.add(waiter);
+        }
+        return false;
+    }
+
+    private void grant(int chunkId, String host, HostQueue queue) {
+        holders.put(chunkId, host);
+        queue.used++;
+        queue.lastGrant = nextGrant++;
+    }
+
+    /**
+     * give back permit of chunk
+     *
+     * @return false if chunk held no permit
+     */
+    public boolean release(int chunkId) {
+        final String host = holders.get(chunkId);
+        if (host == null) return false;
+        holders.remove(chunkId);
+        final HostQueue queue = hosts.get(host);
+        queue.used--;
+        forgetIdle(host, queue);
+        return true;
+    }
+
+    /**
+     * chunk doesn't wait anymore, e.g. its task is paused
+     */
+    public void cancel(int chunkId) {
+        final Waiter waiter = waiters.get(chunkId);
+        if (waiter == null) return;
+        waiters.remove(chunkId);
+        final HostQueue queue = hosts.get(waiter.host);
+        queue.waiting.remove(waiter);
+        forgetIdle(waiter.host, queue);
+    }
+
+    private void forgetIdle(String host, HostQueue queue) {
+        if (queue.used == 0 && queue.waiting.isEmpty()) hosts.remove(host);
+    }
+
+    public boolean isWaiting(int chunkId) {
+        return waiters.get(chunkId) != null;
+    }
+
+    /**
+     * hand a free permit to highest priority waiting chunk of a host under its cap,
+     * hosts take turns on same priority
+     *
+     * @return chunk id which holds the permit now, -1 if no permit is free or no chunk can take it
+     */
+    public int grantNext() {
+        if (holders.size() >= maxConnections) return -1;
+        String bestHost = null;
+        HostQueue best = null;
+        for (Map.Entry<String, HostQueue> entry : hosts.entrySet()) {
+            final HostQueue queue = entry.getValue();
+            if (queue.waiting.isEmpty() || queue.used >= maxConnectionsPerHost) continue;
+            if (best == null || before(queue, best)) {
+                best = queue;
+                bestHost = entry.getKey();
+            }
+        }
+        if (best == null) return -1;
+        final Waiter waiter = best.waiting.poll();
+        waiters.remove(waiter.chunkId);
+        grant(waiter.chunkId, bestHost, best);
+        return waiter.chunkId;
+    }
+
+    private static boolean before(HostQueue a, HostQueue b) {
+        final int priorityA = a.waiting.peek().priority, priorityB = b.waiting.peek().priority;
+        if (priorityA != priorityB) return priorityA > priorityB;
+        return a.lastGrant < b.lastGrant;
+    }
+
+    /**
+     * @return true if a chunk of host would connect right away
+     */
+    public boolean hasFreePermit(String host) {
+        if (holders.size() >= maxConnections) return false;
+        final HostQueue queue = hosts.get(host == null ? UNKNOWN_HOST : host);
+        return queue == null || (queue.used < maxConnectionsPerHost && queue.waiting.isEmpty());
+    }
+
+    /**
+     * @return connections in use
+     */
+    public int getUsedCount() {
+        return holders.size();
+    }
+
+    /**
+     * @return connections in use to host
+     */
+    public int getUsedCount(String host) {
+        final HostQueue queue = hosts.get(host == null ? UNKNOWN_HOST : host);
+        return queue == null ? 0 : queue.used;
+    }
+
+    /**
+     * @return chunks waiting for a connection
+     */
+    public int getWaitingCount() {
+        return waiters.size();
+    }
+}
@@ -0,0 +1,52 @@
+package com.golshadi.majid.core.chunkWorker;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Positional writer over a {@link FileChannel} shared by several chunks.
+ * Closing the stream doesn't close the channel, {@link SingleFileOutput} owns it.
+ */
+public class FileChannelOutputStream extends OutputStream {
+
+    private final FileChannel channel;
+    private long position;
+    // wrapper of the last written array, workers write the same pooled buffer every time
+    private byte[] array;
+    private ByteBuffer byteBuffer;
+
+    public FileChannelOutputStream(FileChannel channel, long position) {
+        this.channel = channel;
+        this.position = position;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (b != array) {
+            array = b;
+            byteBuffer = ByteBuffer.wrap(b);
+        }
+        byteBuffer.clear();
+        byteBuffer.position(off);
+        byteBuffer.limit(off + len);
+        while (byteBuffer.hasRemaining()) {
+            position += channel.write(byteBuffer, position);
+        }
+    }
+
+    @Override
+    public void close() {
+        // shared channel
+    }
+}
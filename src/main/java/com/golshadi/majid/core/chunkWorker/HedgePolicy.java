@@ -0,0 +1,40 @@
+package com.golshadi.majid.core.chunkWorker;
+
+/**
+ * When {@link Moderator} starts a second worker on the remaining range of a slow chunk.
+ * <p>
+ * Once a task is {@code minProgress} done, a running chunk whose speed is below
+ * {@code slowRatio} of the median chunk speed of its task is hedged: a new chunk
+ * takes its remaining range and whichever finishes first is kept, the other one is
+ * cancelled. Hedged ranges of a task never add up to more than {@code maxExtraFraction}
+ * of task size, so the extra bandwidth is capped.
+ */
+public class HedgePolicy {
+
+    public static final long MIN_HEDGE_SIZE = 256 * 1024; // 256KB, smaller tails aren't worth a request
+    public static final long MIN_CHUNK_AGE = 3000;        // ms, chunk speed settles first
+    public static final int MAX_HEDGES_PER_TASK = 2;
+
+    public static final HedgePolicy DEFAULT = new HedgePolicy(0.25, 0.8, 0.1);
+    public static final HedgePolicy NONE = new HedgePolicy(0, 1, 0);
+
+    public final double slowRatio;
+    public final double minProgress;
+    public final double maxExtraFraction;
+
+    public HedgePolicy(double slowRatio, double minProgress, double maxExtraFraction) {
+        if (slowRatio < 0 || slowRatio >= 1)
+            throw new IllegalArgumentException("Invalid slow ratio: " + slowRatio);
+        if (minProgress < 0 || minProgress > 1)
+            throw new IllegalArgumentException("Invalid min progress: " + minProgress);
+        if (maxExtraFraction < 0)
+            throw new IllegalArgumentException("Invalid max extra fraction: " + maxExtraFraction);
+        this.slowRatio = slowRatio;
+        this.minProgress = minProgress;
+        this.maxExtraFraction = maxExtraFraction;
+    }
+
+    public boolean isEnabled() {
+        return slowRatio > 0 && maxExtraFraction > 0;
+    }
+}
@@ -0,0 +1,149 @@
+package com.golshadi.majid.core.chunkWorker;
+
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+
+import com.golshadi.majid.Utils.helper.StripedCounter;
+import com.golshadi.majid.report.ThroughputMeter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.HttpUrl;
+
+/**
+ * Throughput, open connections and failures of every host downloaded from,
+ * to see which origin is slow or refusing connections.
+ */
+public class HostStats {
+
+    public static class Host {
+
+        public final String name;
+        private final StripedCounter downloaded = new StripedCounter();
+        private final ThroughputMeter meter = new ThroughputMeter();
+        private final AtomicInteger connections = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+        private final AtomicInteger busyResponses = new AtomicInteger();
+
+        Host(String name) {
+            this.name = name;
+        }
+
+        /**
+         * called by chunk workers on every progress report, takes no lock
+         */
+        void add(long bytes) {
+            downloaded.add(bytes);
+        }
+
+        void connectionOpened() {
+            connections.incrementAndGet();
+        }
+
+        void connectionClosed() {
+            connections.decrementAndGet();
+        }
+
+        void failed() {
+            failures.incrementAndGet();
+        }
+
+        void busy() {
+            busyResponses.incrementAndGet();
+        }
+
+        // sample downloaded bytes, meter merges samples closer than its interval
+        long sample(long now) {
+            final long bytes = downloaded.sum();
+            meter.record(bytes, now);
+            return bytes;
+        }
+
+        /**
+         * @return bytes downloaded from host in this session
+         */
+        public long getDownloadedBytes() {
+            return sample(SystemClock.elapsedRealtime());
+        }
+
+        /**
+         * @return bytes per sec of all connections to host, exponentially weighted
+         */
+        public long getSpeed() {
+            final long now = SystemClock.elapsedRealtime();
+            sample(now);
+            return meter.getSmoothedSpeed(now);
+        }
+
+        /**
+         * @return bytes per sec averaged over last {@link ThroughputMeter#WINDOW} ms
+         */
+        public long getWindowSpeed() {
+            final long now = SystemClock.elapsedRealtime();
+            sample(now);
+            return meter.getWindowSpeed(now);
+        }
+
+        /**
+         * @return bytes per sec of one connection, 0 when none is open
+         */
+        public long getSpeedPerConnection() {
+            final int open = connections.get();
+            return open <= 0 ? 0 : getSpeed() / open;
+        }
+
+        public int getConnections() {
+            return connections.get();
+        }
+
+        /**
+         * @return failed requests and broken transfers, retried ones included
+         */
+        public int getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * @return HTTP 429 and 503 responses
+         */
+        public int getBusyResponses() {
+            return busyResponses.get();
+        }
+    }
+
+    private final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * @return host part of url, null if url is invalid
+     */
+    @Nullable
+    public static String hostOf(String url) {
+        final HttpUrl httpUrl = HttpUrl.parse(url);
+        return httpUrl == null ? null : httpUrl.host();
+    }
+
+    /**
+     * @return stats of host, created on first use
+     */
+    Host get(String host) {
+        Host stats = hosts.get(host);
+        if (stats == null) {
+            final Host created = new Host(host);
+            stats = hosts.putIfAbsent(host, created);
+            if (stats == null) stats = created;
+        }
+        return stats;
+    }
+
+    @Nullable
+    public Host find(String host) {
+        return hosts.get(host);
+    }
+
+    public List<Host> getHosts() {
+        return new ArrayList<>(hosts.values());
+    }
+}
@@ -1,23 +1,39 @@
 package com.golshadi.majid.core.chunkWorker;
 
 
+import android.os.SystemClock;
 import android.util.SparseArray;
 
 import com.golshadi.majid.Utils.helper.FileUtils;
+import com.golshadi.majid.core.bandwidth.BandwidthLimiter;
+import com.golshadi.majid.core.enums.StorageMode;
 import com.golshadi.majid.core.enums.TaskStates;
 import com.golshadi.majid.core.mainWorker.QueueModerator;
+import com.golshadi.majid.core.mainWorker.TaskExecutor;
+import com.golshadi.majid.core.mainWorker.TaskScheduler;
+import com.golshadi.majid.core.mainWorker.TaskStateMachine;
 import com.golshadi.majid.database.ChunksDataSource;
+import com.golshadi.majid.database.DatabaseWriter;
 import com.golshadi.majid.database.TasksDataSource;
 import com.golshadi.majid.database.elements.Chunk;
 import com.golshadi.majid.database.elements.Task;
 import com.golshadi.majid.report.ReportStructure;
+import com.golshadi.majid.report.ThroughputMeter;
 import com.golshadi.majid.report.listener.DownloadManagerListenerModerator;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import io.reactivex.Observable;
 import io.reactivex.disposables.Disposable;
 import io.reactivex.schedulers.Schedulers;
+import okhttp3.Dispatcher;
 import okhttp3.OkHttpClient;
 import timber.log.Timber;
 
@@ -35,192 +51,1071 @@ public class Moderator {
     public static final String TAG = "Moderator";
 
     private final ChunksDataSource chunksDataSource;  // query on chunk table
-    private final TasksDataSource tasksDataSource;    // query on task table
+    private final TasksDataSource tasksDataSource;    // query on task table, state changes under task lock
     protected final DownloadManagerListenerModerator downloadManagerListener;
 
     private final SparseArray<Disposable> workerList;          // chunk downloader list
-    private final SparseArray<ReportStructure> processReports;  // to save download percent
+    private final SparseArray<Chunk> runningChunks;            // chunks of workerList, same key
+    private volatile SparseArray<ReportStructure> processReports;  // to save download percent, copy on write
+    private final Object reportsLock = new Object();
+    private final SparseArray<SingleFileOutput> outputFiles;    // single file tasks output
+
+    // don't split a chunk when both halves would be smaller than 1MB
+    private static final long MIN_SPLIT_SIZE = 2 * 1024 * 1024;
+    private static final long TASK_MONITOR_INTERVAL = AdaptiveConnections.EVALUATION_INTERVAL;
+    // a running worker closer than this to a seek position gets there soon enough
+    private static final long MIN_SEEK_SPLIT = 1024 * 1024;
 
     private QueueModerator finishedDownloadQueueObserver;
     private final OkHttpClient okHttpClient;
+    private final TaskExecutor taskExecutor; // rebuild and finish tasks
+    private volatile RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+    private volatile TransferOptions transferOptions = TransferOptions.DEFAULT;
+    private final BandwidthLimiter bandwidthLimiter = new BandwidthLimiter();
+    private volatile AdaptiveConnections adaptiveConnections;
+    private volatile HedgePolicy hedgePolicy = HedgePolicy.DEFAULT;
+    private final SparseArray<Disposable> taskMonitors = new SparseArray<>();    // running resumable tasks
+    private final SparseArray<Chunk> hedges = new SparseArray<>();           // straggler id -> hedge, under workerList
+    private final SparseArray<Chunk> hedgedStragglers = new SparseArray<>(); // hedge id -> straggler, under workerList
+    private final ConnectionBudget connectionBudget = new ConnectionBudget(ConnectionBudget.DEFAULT_MAX_CONNECTIONS);
+    private final SparseArray<Task> waitingWorkers = new SparseArray<>();    // chunk id -> task, chunks without connection
+    private final HostStats hostStats = new HostStats();
+    private final TaskStateMachine stateMachine = new TaskStateMachine();
+    private final SparseArray<Rebuilder> rebuilders = new SparseArray<>();  // resumable chunk files tasks, under workerList
+    private volatile SparseArray<HostStats.Host> taskHosts = new SparseArray<>(); // copy on write, under reportsLock
+    private volatile SparseArray<StreamWindow> streamWindows = new SparseArray<>(); // copy on write, under reportsLock
+    private final SparseArray<Task> parkedWorkers = new SparseArray<>(); // chunk id -> task, outside stream windows
+    private final SparseArray<TaskVerifier> verifiers = new SparseArray<>(); // tasks with digests, under workerList
 
     public Moderator(TasksDataSource tasksDS, ChunksDataSource chunksDS,
                      DownloadManagerListenerModerator listenerModerator,
-                     OkHttpClient okHttpClient) {
+                     OkHttpClient okHttpClient, TaskExecutor taskExecutor) {
         this.tasksDataSource = tasksDS;
         this.chunksDataSource = chunksDS;
         this.workerList = new SparseArray<>(); // chunk downloader with they id key
+        this.runningChunks = new SparseArray<>();
         this.processReports = new SparseArray<>();
+        this.outputFiles = new SparseArray<>();
         this.downloadManagerListener = listenerModerator;
         this.okHttpClient = okHttpClient;
+        this.taskExecutor = taskExecutor;
+        // dispatcher would queue requests above its host limit while they hold a permit
+        this.connectionBudget.setMaxConnectionsPerHost(okHttpClient.dispatcher().getMaxRequestsPerHost());
     }
 
     public void setQueueObserver(QueueModerator queueObserver) {
         finishedDownloadQueueObserver = queueObserver;
     }
 
+    /**
+     * retry policy of chunks started after this call
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * transfer options of chunks started after this call
+     */
+    public void setTransferOptions(TransferOptions transferOptions) {
+        this.transferOptions = transferOptions;
+    }
+
+    public BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+
+    /**
+     * @param adaptiveConnections null to always keep every worker busy
+     */
+    public void setAdaptiveConnections(AdaptiveConnections adaptiveConnections) {
+        this.adaptiveConnections = adaptiveConnections;
+    }
+
+    public AdaptiveConnections getAdaptiveConnections() {
+        return adaptiveConnections;
+    }
+
+    public void setHedgePolicy(HedgePolicy hedgePolicy) {
+        this.hedgePolicy = hedgePolicy;
+    }
+
+    /**
+     * connections open at once across all tasks, running workers above it aren't stopped
+     */
+    public void setMaxConnections(int maxConnections) {
+        synchronized (workerList) {
+            connectionBudget.setMaxConnections(maxConnections);
+            final Dispatcher dispatcher = okHttpClient.dispatcher();
+            if (dispatcher.getMaxRequests() < maxConnections) dispatcher.setMaxRequests(maxConnections);
+            startWaitingWorkers();
+        }
+    }
+
+    /**
+     * connections open at once to one host, default is limit of OkHttp dispatcher
+     */
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        synchronized (workerList) {
+            connectionBudget.setMaxConnectionsPerHost(maxConnectionsPerHost);
+            final Dispatcher dispatcher = okHttpClient.dispatcher();
+            if (dispatcher.getMaxRequestsPerHost() < maxConnectionsPerHost)
+                dispatcher.setMaxRequestsPerHost(maxConnectionsPerHost);
+            startWaitingWorkers();
+        }
+    }
+
+    public TaskStateMachine getStateMachine() {
+        return stateMachine;
+    }
+
+    public HostStats getHostStats() {
+        return hostStats;
+    }
+
+    public int getMaxConnections() {
+        synchronized (workerList) {
+            return connectionBudget.getMaxConnections();
+        }
+    }
+
+    /**
+     * chunks of higher priority tasks get freed connections first
+     */
+    public void setTaskPriority(int taskId, int priority) {
+        synchronized (workerList) {
+            connectionBudget.setTaskPriority(taskId, priority);
+        }
+    }
+
     public void start(Task task) {
         // fetch task chunk info
         // set task state to Downloading
         // get any chunk file size calculate where it has to begin
         // start any of them as AsyncTask
 
-        // fetch task chunk info
-        synchronized (tasksDataSource) {
-            task.state = TaskStates.DOWNLOADING;
-            tasksDataSource.update(task);
+        // set task state to Downloading
+        // to lock start download again!
+        if (stateMachine.moveTo(task, TaskStates.DOWNLOADING) < 0) return;
+        tasksDataSource.update(task);
+
+        SingleFileOutput output = null;
+        if (task.storageMode == StorageMode.SINGLE_FILE) {
+            try {
+                output = SingleFileOutput.open(task);
+                synchronized (outputFiles) {
+                    SingleFileOutput old = outputFiles.get(task.id);
+                    if (old != null) old.close();
+                    outputFiles.put(task.id, output);
+                }
+            } catch (IOException e) {
+                Timber.e(e, "[%d] Open output file failed", task.id);
+                error(task.id, "Can't create output file: " + e.getMessage());
+                return;
+            }
         }
+
+        // fetch task chunk info
         List<Chunk> taskChunks = chunksDataSource.chunksRelatedTask(task.id);
-        synchronized (processReports) {
-            ReportStructure rps = processReports.get(task.id);
-            if (rps == null) {
-                rps = new ReportStructure();
-                processReports.put(task.id, rps);
-            }
-            rps.setObjectValues(task, taskChunks);
+        dropOverlappingChunks(task, taskChunks);
+        ReportStructure rps = getReport(task.id);
+        if (rps == null) {
+            rps = new ReportStructure();
+            putReport(rps, task.id);
         }
+        rps.setObjectValues(task, taskChunks);
+        rps.startMeters();
 
-        long downloaded;
         long totalSize;
 
-        // set task state to Downloading
-        // to lock start download again!
+        bandwidthLimiter.taskStarted(task.id, task.priority
+                ? BandwidthLimiter.HIGH_PRIORITY_WEIGHT : BandwidthLimiter.DEFAULT_WEIGHT);
 
+        final int priority = finishedDownloadQueueObserver != null
+                ? finishedDownloadQueueObserver.getTaskPriority(task)
+                : (task.priority ? TaskScheduler.PRIORITY_HIGH : TaskScheduler.PRIORITY_NORMAL);
 
         // get any chunk file size calculate
         synchronized (workerList) {
+            connectionBudget.setTaskPriority(task.id, priority);
+            // kept while paused, it knows how much of output is merged
+            if (task.storageMode == StorageMode.CHUNK_FILES && task.resumable && rebuilders.get(task.id) == null)
+                rebuilders.put(task.id, new Rebuilder(task, this));
+            // kept while paused too, it knows which pieces are checked
+            verifierFor(task);
             for (Chunk chunk : taskChunks) {
-                // chunk file must exist
-                downloaded = FileUtils.size(task.save_address, ChunksDataSource.getChunkFileName(chunk.id));
+                // single file chunks keep their progress in range map, chunk file must exist otherwise
+                if (task.storageMode == StorageMode.CHUNK_FILES)
+                    chunk.downloaded = FileUtils.size(task.save_address, ChunksDataSource.getChunkFileName(chunk.id));
+                else if (output != null)
+                    output.restore(chunk);
                 totalSize = chunk.end - chunk.begin + 1;
-                chunk.begin = chunk.begin + downloaded;
 
                 // chunk is downloaded completely
-                if (!chunk.completed && downloaded == totalSize) chunk.completed = true;
+                if (!chunk.completed && chunk.downloaded == totalSize) chunk.completed = true;
 
-                Disposable chunkDownloaderDisposable =
-                        AsyncWorker.createAsyncWorker(task, chunk, chunksDataSource, this, okHttpClient)
-                                .subscribeOn(Schedulers.io())
-                                .subscribe();
-                workerList.put(chunk.id, chunkDownloaderDisposable);
+                startWorker(task, chunk);
             }
         }
+        startTaskMonitor(task);
+
         // notify to developer------------------------------------------------------------
         downloadManagerListener.OnDownloadStarted(task.id);
     }
 
     /*
-     * pause all chunk thread related to one Task
+     * must hold workerList
+     * chunk waits when connection budget is used up, it counts as running for its task
      */
-    public boolean pause(int taskID) {
-        Timber.d("[%d] Pause task", taskID);
-        synchronized (tasksDataSource) {
-            final Task task = tasksDataSource.getTaskInfo(taskID);
-            if (task != null && task.state != TaskStates.PAUSED && task.state != TaskStates.ERROR
-                    && task.state != TaskStates.END && task.state != TaskStates.DOWNLOAD_FINISHED) {
-                // change task state
-                // save in DB
-                task.state = TaskStates.PAUSED;
-                tasksDataSource.update(task);
-
-                // pause task asyncWorker
-                // change task state
-                // save in DB
-                // notify developer
-
-                // pause task asyncWorker
-                List<Chunk> taskChunks =
-                        chunksDataSource.chunksRelatedTask(task.id);
-                synchronized (workerList) {
-                    for (Chunk chunk : taskChunks) {
-                        final Disposable disposable = workerList.get(chunk.id);
-                        if (disposable != null) {
-                            disposable.dispose();
-                            workerList.remove(chunk.id);
+    private void startWorker(Task task, Chunk chunk) {
+        runningChunks.put(chunk.id, chunk);
+        // nobody reads there yet, startParked() starts it when a stream comes close
+        if (!chunk.completed && hedgedStragglers.get(chunk.id) == null && !wantedByStreams(task, chunk)) {
+            parkedWorkers.put(chunk.id, task);
+            Timber.d("[%d, %d] Park outside stream window", task.id, chunk.id);
+            return;
+        }
+        // a completed chunk doesn't connect
+        if (!chunk.completed && !connectionBudget.acquire(task.id, chunk.id, hostFor(task).name)) {
+            waitingWorkers.put(chunk.id, task);
+            Timber.d("[%d, %d] Wait for a connection", task.id, chunk.id);
+            return;
+        }
+        subscribeWorker(task, chunk);
+    }
+
+    // must hold workerList
+    private void subscribeWorker(Task task, Chunk chunk) {
+        final HostStats.Host host = hostFor(task);
+        host.connectionOpened();
+        Disposable chunkDownloaderDisposable =
+                AsyncWorker.createAsyncWorker(task, chunk, chunksDataSource, this, okHttpClient, retryPolicy,
+                        transferOptions)
+                        .subscribeOn(Schedulers.io())
+                        // completed, failed or disposed
+                        .doFinally(() -> {
+                            host.connectionClosed();
+                            releaseConnection(chunk.id);
+                        })
+                        .subscribe();
+        workerList.put(chunk.id, chunkDownloaderDisposable);
+    }
+
+    private void releaseConnection(int chunkId) {
+        synchronized (workerList) {
+            if (connectionBudget.release(chunkId)) startWaitingWorkers();
+        }
+    }
+
+    // must hold workerList
+    private void startWaitingWorkers() {
+        int chunkId;
+        while ((chunkId = connectionBudget.grantNext()) >= 0) {
+            final Task task = waitingWorkers.get(chunkId);
+            final Chunk chunk = runningChunks.get(chunkId);
+            waitingWorkers.remove(chunkId);
+            if (task == null || chunk == null) {
+                connectionBudget.release(chunkId);
+                continue;
+            }
+            subscribeWorker(task, chunk);
+        }
+    }
+
+    /*
+     * once a second adapt connection count and hedge stragglers of a running task
+     */
+    private void startTaskMonitor(final Task task) {
+        if (!task.resumable) return;
+
+        final AdaptiveConnections adaptive = adaptiveConnections;
+        if (adaptive != null) {
+            synchronized (workerList) {
+                adaptive.taskStarted(task.id, task.url, task.chunks, countRunning(task.id, null),
+                        SystemClock.elapsedRealtime());
+            }
+        }
+        Disposable timer = Observable.interval(TASK_MONITOR_INTERVAL, TimeUnit.MILLISECONDS, Schedulers.computation())
+                .subscribe(tick -> {
+                    // keep host window speed exact when nobody reads it
+                    hostFor(task).sample(SystemClock.elapsedRealtime());
+                    if (adaptive != null) adjustConnections(task, adaptive);
+                    hedgeStragglers(task, hedgePolicy);
+                });
+        synchronized (taskMonitors) {
+            Disposable old = taskMonitors.get(task.id);
+            if (old != null) old.dispose();
+            taskMonitors.put(task.id, timer);
+        }
+    }
+
+    private void stopTaskMonitor(int taskId) {
+        synchronized (taskMonitors) {
+            Disposable timer = taskMonitors.get(taskId);
+            if (timer == null) return;
+            timer.dispose();
+            taskMonitors.remove(taskId);
+        }
+        final AdaptiveConnections adaptive = adaptiveConnections;
+        if (adaptive != null) adaptive.taskStopped(taskId);
+    }
+
+    private void adjustConnections(Task task, AdaptiveConnections adaptive) {
+        final ReportStructure report = getReport(task.id);
+        if (report == null) return;
+        synchronized (workerList) {
+            int running = countRunning(task.id, null);
+            if (running == 0) return;
+            int target = adaptive.update(task.id, report.getWindowSpeed(), running, SystemClock.elapsedRealtime());
+            // a split beyond connection budget would only wait
+            final String host = hostFor(task).name;
+            while (running < target && connectionBudget.hasFreePermit(host) && splitLargest(task, null)) running++;
+        }
+    }
+
+    /*
+     * near the end of a task, start a second worker on remaining range of chunks
+     * much slower than median chunk speed. first copy to finish wins, see resolveHedge()
+     */
+    private void hedgeStragglers(Task task, HedgePolicy policy) {
+        final ReportStructure report = getReport(task.id);
+        if (!policy.isEnabled() || report == null || task.size <= 0) return;
+        if (report.getDownloadedLength() < task.size * policy.minProgress) return;
+        final long median = report.getMedianChunkSpeed();
+        if (median <= 0) return;
+
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (workerList) {
+            // hedges are extra connections, never take one from other tasks
+            if (!connectionBudget.hasFreePermit(hostFor(task).name)) return;
+            int hedgeCount = 0;
+            final List<Chunk> stragglers = new ArrayList<>();
+            for (int i = 0; i < runningChunks.size(); i++) {
+                final Chunk running = runningChunks.valueAt(i);
+                if (running.task_id != task.id) continue;
+                if (hedges.get(running.id) != null) hedgeCount++;
+                if (running.completed || isHedged(running)) continue;
+
+                final ThroughputMeter meter = report.getChunkMeter(running.id);
+                if (meter.getStartTime() < 0 || now - meter.getStartTime() < HedgePolicy.MIN_CHUNK_AGE) continue;
+                if (meter.getSmoothedSpeed(now) < median * policy.slowRatio) stragglers.add(running);
+            }
+
+            for (Chunk straggler : stragglers) {
+                if (hedgeCount >= HedgePolicy.MAX_HEDGES_PER_TASK) return;
+                final Chunk hedge = new Chunk(task.id);
+                synchronized (straggler) {
+                    hedge.begin = straggler.begin + straggler.downloaded;
+                    hedge.end = straggler.end;
+                }
+                final long size = hedge.end - hedge.begin + 1;
+                if (size < HedgePolicy.MIN_HEDGE_SIZE) continue;
+                // cap extra bandwidth
+                if (report.getHedgedBytes() + size > task.size * policy.maxExtraFraction) continue;
+
+                chunksDataSource.insertChunk(hedge);
+                hedges.put(straggler.id, hedge);
+                hedgedStragglers.put(hedge.id, straggler);
+                report.addHedgedBytes(size);
+                hedgeCount++;
+                Timber.d("[%d, %d] Straggling at %d B/s, hedge with chunk %d [%d-%d]", task.id, straggler.id,
+                        report.getChunkSpeed(straggler.id), hedge.id, hedge.begin, hedge.end);
+                startWorker(task, hedge);
+            }
+        }
+    }
+
+    // must hold workerList
+    private boolean isHedged(Chunk chunk) {
+        return hedges.get(chunk.id) != null || hedgedStragglers.get(chunk.id) != null;
+    }
+
+    /*
+     * chunk finished, if it raced a hedge cancel the other copy.
+     * return false if chunk lost its range to the other copy and must be ignored
+     */
+    public boolean resolveHedge(Task task, Chunk finished) {
+        final ReportStructure report = getReport(task.id);
+        String truncateError = null;
+        synchronized (workerList) {
+            if (runningChunks.get(finished.id) != finished) return false;
+
+            final Chunk hedge = hedges.get(finished.id);
+            final Chunk straggler = hedgedStragglers.get(finished.id);
+            long wasted = 0;
+            if (hedge != null) {
+                // straggler won, drop hedge
+                hedges.remove(finished.id);
+                hedgedStragglers.remove(hedge.id);
+                wasted = dropHedge(task, hedge);
+            } else if (straggler != null) {
+                // hedge won, straggler keeps only range before it
+                hedgedStragglers.remove(finished.id);
+                hedges.remove(straggler.id);
+                cancelWorker(straggler);
+                synchronized (straggler) {
+                    final long kept = finished.begin - straggler.begin;
+                    wasted = straggler.downloaded - kept;
+                    straggler.end = finished.begin - 1;
+                    straggler.downloaded = kept;
+                    straggler.completed = true;
+                    if (task.storageMode == StorageMode.CHUNK_FILES) {
+                        try {
+                            FileUtils.truncate(task.save_address, ChunksDataSource.getChunkFileName(straggler.id), kept);
+                        } catch (IOException e) {
+                            truncateError = e.getMessage();
                         }
                     }
                 }
+                chunksDataSource.truncateChunk(straggler);
+                Timber.d("[%d, %d] Hedge %d won, %d bytes wasted", task.id, straggler.id, finished.id, wasted);
+            }
+            if (report != null && wasted > 0) {
+                report.addHedgeWastedBytes(wasted);
+                report.increaseDownloadedLength(-wasted);
+            }
+        }
+        if (truncateError != null) {
+            error(task.id, "Can't truncate chunk file: " + truncateError);
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * must hold workerList
+     * cancel hedge and remove its row, returns bytes it downloaded
+     */
+    private long dropHedge(Task task, Chunk hedge) {
+        cancelWorker(hedge);
+        final long wasted;
+        synchronized (hedge) {
+            wasted = hedge.downloaded;
+            // worker can't write past end anymore
+            hedge.end = hedge.begin - 1;
+            hedge.completed = true;
+        }
+        chunksDataSource.delete(hedge.id);
+        if (task.storageMode == StorageMode.CHUNK_FILES)
+            FileUtils.delete(task.save_address, ChunksDataSource.getChunkFileName(hedge.id));
+        Timber.d("[%d, %d] Dropped hedge, %d bytes wasted", task.id, hedge.id, wasted);
+        return wasted;
+    }
 
-                final ReportStructure rs = getReport(taskID);
-                if (rs != null) rs.setObjectValues(task, taskChunks);
+    // must hold workerList
+    private void cancelWorker(Chunk chunk) {
+        parkedWorkers.remove(chunk.id);
+        if (waitingWorkers.get(chunk.id) != null) {
+            waitingWorkers.remove(chunk.id);
+            connectionBudget.cancel(chunk.id);
+        }
+        final Disposable disposable = workerList.get(chunk.id);
+        if (disposable != null) {
+            disposable.dispose();
+            workerList.remove(chunk.id);
+        }
+        runningChunks.remove(chunk.id);
+    }
 
-                // notify to developer------------------------------------------------------------
-                downloadManagerListener.OnDownloadPaused(task.id);
-                return true;
+    /*
+     * hedge rows left by a crash overlap their straggler, drop the newer chunk
+     */
+    private void dropOverlappingChunks(Task task, List<Chunk> taskChunks) {
+        Chunk previous = null;
+        for (Iterator<Chunk> it = taskChunks.iterator(); it.hasNext(); ) {
+            final Chunk chunk = it.next();
+            if (previous == null || chunk.begin > previous.end) {
+                previous = chunk;
+                continue;
+            }
+            Chunk dropped = chunk;
+            if (previous.id > chunk.id) {
+                dropped = previous;
+                taskChunks.set(taskChunks.indexOf(previous), chunk);
+                previous = chunk;
             }
+            it.remove();
+            chunksDataSource.delete(dropped.id);
+            if (task.storageMode == StorageMode.CHUNK_FILES)
+                FileUtils.delete(task.save_address, ChunksDataSource.getChunkFileName(dropped.id));
+            Timber.w("[%d, %d] Dropped overlapping chunk", task.id, dropped.id);
+        }
+    }
+
+    /*
+     * server answered busy, fewer connections for this task
+     */
+    public void serverBusy(int taskId) {
+        final HostStats.Host host = taskHosts.get(taskId);
+        if (host != null) host.busy();
+        final AdaptiveConnections adaptive = adaptiveConnections;
+        if (adaptive != null) adaptive.congested(taskId, SystemClock.elapsedRealtime());
+    }
+
+    /*
+     * a request or transfer of task failed, it may be retried
+     */
+    public void connectionFailed(int taskId) {
+        final HostStats.Host host = taskHosts.get(taskId);
+        if (host != null) host.failed();
+    }
+
+    // must hold workerList
+    private int countRunning(int taskId, Chunk exclude) {
+        int running = 0;
+        for (int i = 0; i < runningChunks.size(); i++) {
+            final Chunk chunk = runningChunks.valueAt(i);
+            if (chunk.task_id == taskId && chunk != exclude && !chunk.completed
+                    && waitingWorkers.get(chunk.id) == null && parkedWorkers.get(chunk.id) == null) running++;
+        }
+        return running;
+    }
+
+    /*
+     * a worker of this task is free, split the largest remaining range of
+     * an in-flight chunk and download its second half with a new worker.
+     * runs under workerList so rebuild() never sees a half done split.
+     */
+    public void stealWork(Task task, Chunk finished) {
+        if (!task.resumable) return;
+
+        synchronized (workerList) {
+            final AdaptiveConnections adaptive = adaptiveConnections;
+            // above adaptive target, let this connection go
+            if (adaptive != null && !adaptive.wantsConnection(task.id, countRunning(task.id, finished)))
+                return;
+            splitLargest(task, finished);
+        }
+    }
+
+    /*
+     * must hold workerList
+     * return false if no chunk is large enough to split
+     */
+    private boolean splitLargest(Task task, Chunk exclude) {
+        final StreamWindow window = task.resumable ? streamWindows.get(task.id) : null;
+        Chunk victim = null;
+        long largest = MIN_SPLIT_SIZE - 1;
+        for (int i = 0; i < runningChunks.size(); i++) {
+            final Chunk running = runningChunks.valueAt(i);
+            if (running.task_id != task.id || running == exclude || running.completed || isHedged(running)
+                    || parkedWorkers.get(running.id) != null)
+                continue;
+            long remaining = splittable(running, window);
+            if (remaining > largest) {
+                largest = remaining;
+                victim = running;
+            }
+        }
+        if (victim == null) return false;
+
+        final Chunk stolen = new Chunk(task.id);
+        // worker writes under chunk lock, it can't pass the new end
+        synchronized (victim) {
+            long position = victim.begin + victim.downloaded;
+            long remaining = splittable(victim, window);
+            if (victim.completed || remaining < MIN_SPLIT_SIZE) return false;
+            stolen.begin = position + remaining / 2;
+            stolen.end = victim.end;
+            victim.end = stolen.begin - 1;
+        }
+        chunksDataSource.splitChunk(victim, stolen);
+        Timber.d("[%d, %d] Split chunk, new chunk %d [%d-%d]",
+                task.id, victim.id, stolen.id, stolen.begin, stolen.end);
+        startWorker(task, stolen);
+        return true;
+    }
+
+    /*
+     * remaining range of a chunk a split may take half of. a streaming task
+     * splits only what its readers want next, so the new chunk isn't parked
+     */
+    private static long splittable(Chunk chunk, StreamWindow window) {
+        final long position = chunk.begin + chunk.downloaded;
+        long end = chunk.end;
+        if (window != null) end = Math.min(end, window.windowEnd(position));
+        return end - position + 1;
+    }
+
+    /*
+     * pause all chunk thread related to one Task
+     */
+    public boolean pause(int taskID) {
+        Timber.d("[%d] Pause task", taskID);
+        final Task task = tasksDataSource.getTaskInfo(taskID);
+        // change task state
+        // save in DB
+        if (stateMachine.moveTo(task, TaskStates.PAUSED) < 0) return false;
+        tasksDataSource.update(task);
+
+        // pause task asyncWorker
+        stopTask(task);
+
+        // notify to developer------------------------------------------------------------
+        downloadManagerListener.OnDownloadPaused(task.id);
+        return true;
+    }
+
+    /*
+     * stop workers of a task which left downloading state, save progress of single file chunks
+     */
+    private void stopTask(Task task) {
+        // running chunks, not db rows: a split may have added a chunk
+        SparseArray<Chunk> liveChunks = new SparseArray<>();
+        synchronized (workerList) {
+            // stop waiting chunks first, connections freed below mustn't start them
+            for (int i = waitingWorkers.size() - 1; i >= 0; i--) {
+                if (waitingWorkers.valueAt(i).id != task.id) continue;
+                connectionBudget.cancel(waitingWorkers.keyAt(i));
+                waitingWorkers.removeAt(i);
+            }
+            connectionBudget.taskStopped(task.id);
+            for (int i = parkedWorkers.size() - 1; i >= 0; i--) {
+                if (parkedWorkers.valueAt(i).id == task.id) parkedWorkers.removeAt(i);
+            }
+            for (int i = runningChunks.size() - 1; i >= 0; i--) {
+                final Chunk running = runningChunks.valueAt(i);
+                if (running.task_id != task.id) continue;
+                final Disposable disposable = workerList.get(running.id);
+                if (disposable != null) {
+                    disposable.dispose();
+                    workerList.remove(running.id);
+                }
+                runningChunks.removeAt(i);
+                liveChunks.put(running.id, running);
+            }
+            // an unfinished hedge overlaps its straggler, drop it
+            for (int i = hedges.size() - 1; i >= 0; i--) {
+                final Chunk hedge = hedges.valueAt(i);
+                if (hedge.task_id != task.id) continue;
+                hedgedStragglers.remove(hedge.id);
+                hedges.removeAt(i);
+                liveChunks.remove(hedge.id);
+                dropHedge(task, hedge);
+            }
+        }
+        bandwidthLimiter.taskStopped(task.id);
+        stopTaskMonitor(task.id);
+        forgetTaskHost(task.id);
+        List<Chunk> taskChunks = chunksDataSource.chunksRelatedTask(task.id);
+        for (int i = 0; i < taskChunks.size(); i++) {
+            final Chunk running = liveChunks.get(taskChunks.get(i).id);
+            if (running != null) taskChunks.set(i, running);
+        }
+
+        if (task.storageMode == StorageMode.SINGLE_FILE) {
+            closeOutputFile(task, taskChunks);
         }
-        return false;
+
+        final ReportStructure rs = getReport(task.id);
+        if (rs != null) rs.setObjectValues(task, taskChunks);
     }
 
     /*
     to calculate download percentage
     if download task is un resumable it return -1 as percent
      */
-    private int downloadByteThreshold = 0;
-    private static final int THRESHOLD = 1024 * 50;
-
+    /*
+     * hot path of every worker: no lock, no allocation.
+     * report is only marked dirty, progress dispatcher publishes it later
+     */
     public void process(int taskId, long byteRead) {
         downloadManagerListener.countBytesDownloaded(byteRead);
+        final HostStats.Host host = taskHosts.get(taskId);
+        if (host != null) host.add(byteRead);
+
+        final StreamWindow window = streamWindows.get(taskId);
+        if (window != null) window.dataArrived();
+
+        final ReportStructure report = getReport(taskId);
+        if (report == null) return;
+        report.increaseDownloadedLength(byteRead);
+
+        // notify to developer------------------------------------------------------------
+        downloadManagerListener.onDownloadProcess(report);
+    }
 
+    public ThroughputMeter getChunkMeter(int taskId, int chunkId) {
         final ReportStructure report = getReport(taskId);
-        double percent = -1;
-        long downloadLength = report.increaseDownloadedLength(byteRead);
+        return report == null ? new ThroughputMeter() : report.getChunkMeter(chunkId);
+    }
 
-        downloadByteThreshold += byteRead;
-        if (downloadByteThreshold > THRESHOLD) {
-            downloadByteThreshold = 0;
+    public OutputStream openChunkOutput(Task task, Chunk chunk) throws IOException {
+        if (task.storageMode == StorageMode.SINGLE_FILE) {
+            final SingleFileOutput output;
+            synchronized (outputFiles) {
+                output = outputFiles.get(task.id);
+            }
+            if (output == null) throw new IOException("Output file is closed: " + task.name);
+            return output.openStream(chunk.begin + chunk.downloaded);
+        }
+        return new FileOutputStream(
+                new File(task.save_address, ChunksDataSource.getChunkFileName(chunk.id)), true);
+    }
 
-            if (report.isResumable()) {
-                percent = ((float) downloadLength / report.getTotalSize() * 100);
+    /*
+     * set chunk offset to the bytes really written before a (re)try:
+     * chunk file length, single file chunks only count successful writes.
+     * un resumable links always start over.
+     */
+    public void restoreChunkOffset(Task task, Chunk chunk) throws IOException {
+        long delta;
+        synchronized (chunk) {
+            long downloaded = chunk.downloaded;
+            if (!task.resumable) {
+                chunk.downloaded = 0;
+                if (task.storageMode == StorageMode.CHUNK_FILES)
+                    new FileOutputStream(new File(task.save_address,
+                            ChunksDataSource.getChunkFileName(chunk.id)), false).close();
+            } else if (task.storageMode == StorageMode.CHUNK_FILES) {
+                chunk.downloaded = FileUtils.size(task.save_address, ChunksDataSource.getChunkFileName(chunk.id));
             }
+            delta = chunk.downloaded - downloaded;
+        }
+
+        final ReportStructure report = getReport(task.id);
+        if (delta != 0 && report != null) report.increaseDownloadedLength(delta);
+    }
+
+    /*
+     * save chunk progress, only single file chunks need it;
+     * chunk files size is their progress. range map is saved in batches
+     */
+    public void checkpoint(Task task, Chunk chunk) {
+        if (task.storageMode != StorageMode.SINGLE_FILE) return;
 
-            // notify to developer------------------------------------------------------------
-            downloadManagerListener.onDownloadProcess(taskId, percent, downloadLength);
+        final SingleFileOutput output;
+        synchronized (outputFiles) {
+            output = outputFiles.get(task.id);
+        }
+        if (output == null) return;
+        final long end;
+        synchronized (chunk) {
+            end = chunk.begin + chunk.downloaded;
+        }
+        try {
+            output.checkpoint(chunk.begin, end);
+        } catch (IOException e) {
+            Timber.e(e, "[%d, %d] Save chunk progress failed", task.id, chunk.id);
+        }
+    }
+
+    private void closeOutputFile(Task task, List<Chunk> taskChunks) {
+        final SingleFileOutput output;
+        synchronized (outputFiles) {
+            output = outputFiles.get(task.id);
+            outputFiles.remove(task.id);
+        }
+        if (output == null) return;
+        try {
+            // workers may still finish a write, save what was synced only
+            int[] chunkIds = new int[taskChunks.size()];
+            long[] downloaded = new long[taskChunks.size()];
+            for (int i = 0; i < downloaded.length; i++) {
+                chunkIds[i] = taskChunks.get(i).id;
+                downloaded[i] = taskChunks.get(i).downloaded;
+            }
+            output.sync();
+            output.saveProgress(taskChunks, downloaded);
+            // reports of tasks not started yet read chunk rows
+            chunksDataSource.updateChunksProgress(chunkIds, downloaded);
+        } catch (IOException e) {
+            Timber.e(e, "[%d] Save chunks progress failed", task.id);
+        } finally {
+            output.close();
         }
     }
 
+    /*
+     * a chunk finished. merge finished chunks in front of first unfinished one,
+     * or whole task when it was the last one
+     */
     public void rebuild(Chunk chunk) {
         List<Chunk> taskChunks;
         synchronized (workerList) {
             workerList.remove(chunk.id);
+            runningChunks.remove(chunk.id);
+            // output is checked first, a bad piece is downloaded again
+            final TaskVerifier verifier = verifiers.get(chunk.task_id);
+            if (verifier != null && verifier.checksWhileDownloading()) {
+                taskExecutor.execute(() -> verifyFinished(chunk.task_id, verifier));
+                return;
+            }
             taskChunks = chunksDataSource.chunksRelatedTask(chunk.task_id);
             for (Chunk ch : taskChunks) {
-                if (workerList.get(ch.id) != null) {
+                // running or waiting for a connection
+                if (runningChunks.get(ch.id) != null) {
+                    mergeFinished(rebuilders.get(chunk.task_id), taskChunks);
                     return;
                 }
             }
         }
+        finishDownload(tasksDataSource.getTaskInfo(chunk.task_id), taskChunks);
+    }
 
-        final Task task;
-        synchronized (tasksDataSource) {
-            task = tasksDataSource.getTaskInfo(chunk.task_id);
-            // set state task state to finished
-            task.state = TaskStates.DOWNLOAD_FINISHED;
-            tasksDataSource.update(task);
+    /*
+     * every chunk is downloaded, finish output file
+     */
+    private void finishDownload(Task task, List<Chunk> taskChunks) {
+        // set state task state to finished, unless it was paused or failed meanwhile
+        if (!stateMachine.move(task, TaskStates.DOWNLOADING, TaskStates.DOWNLOAD_FINISHED)) return;
+        tasksDataSource.update(task);
+
+        Rebuilder rebuilder;
+        synchronized (workerList) {
+            connectionBudget.taskStopped(task.id);
+            rebuilder = rebuilders.get(task.id);
+            rebuilders.remove(task.id);
         }
+        if (rebuilder == null) rebuilder = new Rebuilder(task, this);
+        bandwidthLimiter.taskStopped(task.id);
+        stopTaskMonitor(task.id);
+        forgetTaskHost(task.id);
 
         final ReportStructure rs = getReport(task.id);
         rs.setObjectValues(task, taskChunks);
 
         downloadManagerListener.OnDownloadFinished(task.id);
-        Thread t = new Rebuilder(task, taskChunks, this);
-        t.start();
+        if (task.storageMode == StorageMode.SINGLE_FILE) {
+            taskExecutor.execute(() -> finishSingleFile(task, taskChunks));
+        } else {
+            final Rebuilder finalRebuilder = rebuilder;
+            taskExecutor.execute(() -> finalRebuilder.finish(taskChunks));
+        }
     }
 
-    public void reBuildIsDone(Task task, List<Chunk> taskChunks) {
-        synchronized (tasksDataSource) {
-            // change task row state
-            task.state = TaskStates.END;
-            task.notify = false;
-            tasksDataSource.update(task);
-            final ReportStructure rs = getReport(task.id);
-            rs.state = TaskStates.END;
-            rs.onChanged();
+    /*
+     * on task executor. hash pieces of finished chunks, download bad ones again
+     * and finish the task when every piece matches
+     */
+    private void verifyFinished(int taskId, TaskVerifier verifier) {
+        final Task task = getTask(taskId);
+        if (task == null) return;
+        while (task.state == TaskStates.DOWNLOADING) {
+            final List<Chunk> finished = new ArrayList<>();
+            final List<Chunk> running = new ArrayList<>();
+            synchronized (workerList) {
+                for (Chunk ch : chunksDataSource.chunksRelatedTask(taskId)) {
+                    if (ch.completed && runningChunks.get(ch.id) == null) finished.add(ch);
+                    else running.add(ch);
+                }
+            }
+
+            final int verified = verifier.verifiedPieces();
+            final List<long[]> bad;
+            try {
+                bad = verifier.verify(SingleFileOutput.partFile(task), finished, running);
+            } catch (IOException e) {
+                // paused or failed meanwhile, part file may be closed or gone
+                if (task.state != TaskStates.DOWNLOADING) return;
+                Timber.e(e, "[%d] Verify pieces failed", taskId);
+                error(taskId, "Verify pieces error: " + e.getMessage());
+                return;
+            }
+
+            final List<Chunk> taskChunks;
+            synchronized (workerList) {
+                for (long[] piece : bad) {
+                    if (task.state == TaskStates.DOWNLOADING) downloadAgain(task, piece[0], piece[1]);
+                    verifier.release(piece[0]);
+                }
+                if (!bad.isEmpty()) return;
+                // rebuild() of a running chunk checks again
+                taskChunks = chunksDataSource.chunksRelatedTask(taskId);
+                for (Chunk ch : taskChunks) {
+                    if (!ch.completed || runningChunks.get(ch.id) != null) return;
+                }
+                // the job hashing the rest finishes task
+                if (!verifier.allPiecesVerified() && !verifier.hasUnclaimedPieces()) return;
+            }
+            if (verifier.allPiecesVerified()) {
+                finishDownload(task, taskChunks);
+                return;
+            }
+            // every chunk was finished and still nothing to hash, chunks leave a gap
+            if (running.isEmpty() && verifier.verifiedPieces() == verified) {
+                error(taskId, "Pieces not covered by chunks");
+                return;
+            }
+            // chunks finished while hashing, their pieces were skipped
+        }
+    }
+
+    /*
+     * must hold workerList
+     * rewind finished chunks over {@code [begin, end]} to begin and download them again.
+     * a chunk reaching past the range is split there first, its tail stays finished
+     */
+    private void downloadAgain(Task task, long begin, long end) {
+        final SingleFileOutput output;
+        synchronized (outputFiles) {
+            output = outputFiles.get(task.id);
+        }
+        // a resume mustn't take the bad range for written
+        if (output != null) {
+            try {
+                output.unmark(begin, end + 1);
+            } catch (IOException e) {
+                Timber.e(e, "[%d] Save range map failed", task.id);
+            }
+        }
+        final ReportStructure report = getReport(task.id);
+        for (Chunk chunk : chunksDataSource.chunksRelatedTask(task.id)) {
+            if (chunk.begin > end || chunk.end < begin) continue;
+            if (!chunk.completed || runningChunks.get(chunk.id) != null) continue;
+
+            final long rewound;
+            synchronized (chunk) {
+                if (Math.min(chunk.end, task.size - 1) > end) {
+                    final Chunk tail = new Chunk(task.id);
+                    tail.begin = end + 1;
+                    tail.end = chunk.end;
+                    tail.downloaded = chunk.begin + chunk.downloaded - tail.begin;
+                    tail.completed = true;
+                    chunk.end = end;
+                    chunk.downloaded -= tail.downloaded;
+                    chunksDataSource.splitChunk(chunk, tail);
+                }
+                final long downloaded = Math.max(0, begin - chunk.begin);
+                rewound = chunk.downloaded - downloaded;
+                chunk.downloaded = downloaded;
+                chunk.completed = false;
+            }
+            chunksDataSource.truncateChunk(chunk);
+            if (report != null) report.increaseDownloadedLength(-rewound);
+            Timber.d("[%d, %d] Download [%d-%d] again", task.id, chunk.id, chunk.begin + chunk.downloaded, chunk.end);
+            startWorker(task, chunk);
+        }
+    }
+
+    /*
+     * must hold workerList
+     * chunks are in file order, queue a merge of the finished ones in front
+     */
+    private void mergeFinished(Rebuilder rebuilder, List<Chunk> taskChunks) {
+        if (rebuilder == null) return;
+        final List<Chunk> finished = new ArrayList<>();
+        for (Chunk ch : taskChunks) {
+            if (!ch.completed || runningChunks.get(ch.id) != null) break;
+            finished.add(ch);
+        }
+        if (!finished.isEmpty()) taskExecutor.execute(() -> rebuilder.merge(finished, false));
+    }
+
+    /*
+     * chunk is in output file and synced, drop its row then its file
+     */
+    void chunkMerged(Task task, Chunk chunk) {
+        DatabaseWriter.await(chunksDataSource.delete(chunk.id), false);
+        FileUtils.delete(task.save_address, ChunksDataSource.getChunkFileName(chunk.id));
+    }
+
+    /*
+     * task is deleted or failed, stop merging its chunks
+     */
+    public void forgetMerge(int taskId) {
+        synchronized (workerList) {
+            final Rebuilder rebuilder = rebuilders.get(taskId);
+            if (rebuilder == null) return;
+            rebuilder.cancel();
+            rebuilders.remove(taskId);
+        }
+    }
+
+    /*
+     * digests of task changed or task is gone, next start checks from scratch
+     */
+    public void forgetVerifier(int taskId) {
+        synchronized (workerList) {
+            verifiers.remove(taskId);
+        }
+    }
+
+    /*
+     * null if task has no digests
+     */
+    TaskVerifier verifierFor(Task task) {
+        synchronized (workerList) {
+            TaskVerifier verifier = verifiers.get(task.id);
+            if (verifier == null) {
+                verifier = TaskVerifier.of(task);
+                if (verifier != null) verifiers.put(task.id, verifier);
+            }
+            return verifier;
+        }
+    }
+
+    /*
+     * task finishes, its file is checked one last time
+     */
+    TaskVerifier takeVerifier(Task task) {
+        synchronized (workerList) {
+            final TaskVerifier verifier = verifierFor(task);
+            verifiers.remove(task.id);
+            return verifier;
+        }
+    }
+
+    /*
+     * single file chunks are already in place, sync output file instead of rebuild
+     */
+    public void finishSingleFile(Task task, List<Chunk> taskChunks) {
+        SingleFileOutput output;
+        synchronized (outputFiles) {
+            output = outputFiles.get(task.id);
+            outputFiles.remove(task.id);
+        }
+
+        long length = -1;
+        if (!task.resumable) {
+            length = 0;
+            for (Chunk chunk : taskChunks) length += chunk.downloaded;
         }
 
-        // delete chunk row from chunk table
+        try {
+            // task was finished in a previous session
+            if (output == null) {
+                // renamed before task row was saved
+                if (SingleFileOutput.isFinished(task)) {
+                    reBuildIsDone(task, taskChunks);
+                    return;
+                }
+                output = SingleFileOutput.open(task);
+            }
+            final TaskVerifier verifier = takeVerifier(task);
+            if (verifier != null) {
+                final String mismatch = verifier.check(output.getFile(), length >= 0 ? length : task.size);
+                if (mismatch != null) {
+                    Timber.e("[%d] %s", task.id, mismatch);
+                    output.close();
+                    error(task.id, mismatch);
+                    return;
+                }
+            }
+            output.finish(length);
+        } catch (IOException e) {
+            if (output != null) output.close();
+            Timber.e(e, "[%d] Sync output file failed", task.id);
+            error(task.id, "Sync output file error: " + e.getMessage());
+            return;
+        }
+
+        reBuildIsDone(task, taskChunks);
+    }
+
+    public void reBuildIsDone(Task task, List<Chunk> taskChunks) {
+        // change task row state
+        if (!stateMachine.move(task, TaskStates.DOWNLOAD_FINISHED, TaskStates.END)) return;
+        task.notify = false;
+        tasksDataSource.update(task);
+        final ReportStructure rs = getReport(task.id);
+        rs.state = TaskStates.END;
+        downloadManagerListener.onReportChanged(rs);
+        wakeStreams(task.id);
+
+        // delete chunk rows from chunk table
+        chunksDataSource.deleteChunksOfTask(task.id);
         for (Chunk chunk : taskChunks) {
-            chunksDataSource.delete(chunk.id);
             FileUtils.delete(task.save_address, ChunksDataSource.getChunkFileName(chunk.id));
         }
 
@@ -239,21 +1134,23 @@ public class Moderator {
         }
     }
 
+    /*
+     * first error of a task wins, later ones and errors of ended tasks are ignored
+     */
     public void error(int taskId, String errorMessage) {
-        pause(taskId);
-
-        final Task task;
-        synchronized (tasksDataSource) {
-            task = tasksDataSource.getTaskInfo(taskId);
-            task.state = TaskStates.ERROR;
-            task.errorMessage = errorMessage;
-            task.notify = false;
-            tasksDataSource.update(task);
-        }
+        final Task task = tasksDataSource.getTaskInfo(taskId);
+        if (stateMachine.moveTo(task, TaskStates.ERROR) < 0) return;
+        task.errorMessage = errorMessage;
+        task.notify = false;
+        tasksDataSource.update(task);
+        stopTask(task);
+        forgetMerge(taskId);
+        forgetVerifier(taskId);
 
         final ReportStructure rs = getReport(taskId);
         rs.state = TaskStates.ERROR;
-        rs.onChanged();
+        downloadManagerListener.onReportChanged(rs);
+        wakeStreams(taskId);
 
         // clean up
         List<Chunk> taskChunks = chunksDataSource.chunksRelatedTask(task.id);
@@ -263,12 +1160,13 @@ public class Moderator {
             } catch (Exception ex) {
                 Timber.e(ex, "[%d] Clean up task file after error", taskId);
             }
-            chunksDataSource.delete(chunk.id);
         }
+        chunksDataSource.deleteChunksOfTask(task.id);
 
         try {
             if (new File(task.save_address, task.name).exists())
                 FileUtils.delete(task.save_address, task.name);
+            if (task.storageMode == StorageMode.SINGLE_FILE) SingleFileOutput.delete(task);
         } catch (Exception ex) {
             Timber.e(ex, "[%d] Clean up task file after error", taskId);
         }
@@ -278,23 +1176,165 @@ public class Moderator {
         wakeUpObserver(taskId);
     }
 
+    /*
+     * must hold workerList
+     */
+    private boolean wantedByStreams(Task task, Chunk chunk) {
+        final StreamWindow window = streamWindows.get(task.id);
+        if (window == null || !task.resumable) return true;
+        synchronized (chunk) {
+            return window.wants(chunk.begin + chunk.downloaded, chunk.end);
+        }
+    }
+
+    /*
+     * read a task while it downloads, see TaskInputStream
+     */
+    public TaskInputStream openStream(int taskId, long windowSize) {
+        if (getTask(taskId) == null) throw new IllegalArgumentException("Invalid task: " + taskId);
+        final TaskInputStream stream;
+        synchronized (reportsLock) {
+            StreamWindow window = streamWindows.get(taskId);
+            if (window == null) {
+                window = new StreamWindow();
+                final SparseArray<StreamWindow> windows = streamWindows.clone();
+                windows.put(taskId, window);
+                streamWindows = windows;
+            }
+            stream = new TaskInputStream(taskId, windowSize, this, window);
+            window.add(stream);
+        }
+        streamMoved(stream, false);
+        return stream;
+    }
+
+    /*
+     * stream moved its window, start parked chunks it reaches. on a seek a worker
+     * far behind the new position gives the rest of its chunk to a new one
+     */
+    void streamMoved(TaskInputStream stream, boolean seek) {
+        final Task task = getTask(stream.taskId);
+        if (task == null || !task.resumable) return;
+        synchronized (workerList) {
+            if (seek) splitAt(task, stream.position());
+            startParked(task);
+        }
+    }
+
+    void closeStream(TaskInputStream stream) {
+        synchronized (reportsLock) {
+            final StreamWindow window = stream.getWindow();
+            if (window.remove(stream) && streamWindows.get(stream.taskId) == window) {
+                final SparseArray<StreamWindow> windows = streamWindows.clone();
+                windows.remove(stream.taskId);
+                streamWindows = windows;
+            }
+        }
+        // last reader gone, task downloads as usual
+        final Task task = getTask(stream.taskId);
+        if (task == null) return;
+        synchronized (workerList) {
+            startParked(task);
+        }
+    }
+
+    // must hold workerList
+    private void startParked(Task task) {
+        final List<Chunk> parked = new ArrayList<>();
+        for (int i = parkedWorkers.size() - 1; i >= 0; i--) {
+            if (parkedWorkers.valueAt(i).id != task.id) continue;
+            final Chunk chunk = runningChunks.get(parkedWorkers.keyAt(i));
+            parkedWorkers.removeAt(i);
+            if (chunk != null) parked.add(chunk);
+        }
+        // parks again whatever is still outside every window
+        for (Chunk chunk : parked) startWorker(task, chunk);
+    }
+
+    /*
+     * must hold workerList
+     * new chunk from position to end of the chunk holding it, unless its worker is close
+     */
+    private void splitAt(Task task, long position) {
+        for (int i = 0; i < runningChunks.size(); i++) {
+            final Chunk running = runningChunks.valueAt(i);
+            if (running.task_id != task.id || running.completed || isHedged(running)) continue;
+            final Chunk stolen = new Chunk(task.id);
+            synchronized (running) {
+                if (position < running.begin || position > running.end) continue;
+                if (position - (running.begin + running.downloaded) < MIN_SEEK_SPLIT) return;
+                stolen.begin = position;
+                stolen.end = running.end;
+                running.end = position - 1;
+            }
+            chunksDataSource.splitChunk(running, stolen);
+            Timber.d("[%d, %d] Seek to %d, new chunk %d [%d-%d]",
+                    task.id, running.id, position, stolen.id, stolen.begin, stolen.end);
+            startWorker(task, stolen);
+            return;
+        }
+    }
+
+    private void wakeStreams(int taskId) {
+        final StreamWindow window = streamWindows.get(taskId);
+        if (window != null) window.wake();
+    }
+
+    // null if task is deleted
+    Task getTask(int taskId) {
+        final Task task = tasksDataSource.getTaskInfo(taskId);
+        return task.url == null ? null : task;
+    }
+
+    List<Chunk> getTaskChunks(int taskId) {
+        return chunksDataSource.chunksRelatedTask(taskId);
+    }
+
+    private HostStats.Host hostFor(Task task) {
+        HostStats.Host host = taskHosts.get(task.id);
+        if (host != null) return host;
+        final String name = HostStats.hostOf(task.url);
+        host = hostStats.get(name == null ? "" : name);
+        synchronized (reportsLock) {
+            final SparseArray<HostStats.Host> hosts = taskHosts.clone();
+            hosts.put(task.id, host);
+            taskHosts = hosts;
+        }
+        return host;
+    }
+
+    private void forgetTaskHost(int taskId) {
+        synchronized (reportsLock) {
+            if (taskHosts.get(taskId) == null) return;
+            final SparseArray<HostStats.Host> hosts = taskHosts.clone();
+            hosts.remove(taskId);
+            taskHosts = hosts;
+        }
+    }
+
     public void putReport(ReportStructure rs) {
-        synchronized (processReports) {
-            processReports.put(rs.id, rs);
+        putReport(rs, rs.id);
+    }
+
+    private void putReport(ReportStructure rs, int taskId) {
+        synchronized (reportsLock) {
+            final SparseArray<ReportStructure> reports = processReports.clone();
+            reports.put(taskId, rs);
+            processReports = reports;
         }
     }
 
     public ReportStructure getReport(int taskId) {
-        synchronized (processReports) {
-            return processReports.get(taskId);
-        }
+        return processReports.get(taskId);
     }
 
     public void putAllReport(List<ReportStructure> reportStructures) {
-        synchronized (processReports) {
+        synchronized (reportsLock) {
+            final SparseArray<ReportStructure> reports = processReports.clone();
             for (ReportStructure reportStructure : reportStructures) {
-                processReports.put(reportStructure.id, reportStructure);
+                reports.put(reportStructure.id, reportStructure);
             }
+            processReports = reports;
         }
     }
 }
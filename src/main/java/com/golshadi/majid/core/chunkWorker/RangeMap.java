@@ -0,0 +1,183 @@
+package com.golshadi.majid.core.chunkWorker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Byte ranges of a task's output file which are written and synced, kept sorted and
+ * coalesced, so a task downloaded by any number of chunks and splits needs a few pairs.
+ * <p>
+ * Saved next to the output as a small binary file: a header naming task and size, then
+ * {@code [begin, end)} pairs. A save goes to a temp file which is synced and renamed over
+ * the old one, so a crash leaves either map whole. Not thread safe.
+ */
+class RangeMap {
+
+    private static final int MAGIC = 0x524d4150; // "RMAP"
+    private static final int VERSION = 1;
+
+    private long[] begins = new long[8];
+    private long[] ends = new long[8];
+    private int count = 0;
+
+    /**
+     * mark {@code [begin, end)} as written
+     */
+    void add(long begin, long end) {
+        if (end <= begin) return;
+        // first range which ends at or after begin, it may touch the new one
+        int first = 0;
+        while (first < count && ends[first] < begin) first++;
+        // ranges from first up to last overlap or touch the new one
+        int last = first;
+        while (last < count && begins[last] <= end) {
+            begin = Math.min(begin, begins[last]);
+            end = Math.max(end, ends[last]);
+            last++;
+        }
+        final int removed = last - first;
+        if (removed == 0) {
+            if (count == begins.length) {
+                begins = Arrays.copyOf(begins, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            System.arraycopy(begins, first, begins, first + 1, count - first);
+            System.arraycopy(ends, first, ends, first + 1, count - first);
+            count++;
+        } else if (removed > 1) {
+            System.arraycopy(begins, last, begins, first + 1, count - last);
+            System.arraycopy(ends, last, ends, first + 1, count - last);
+            count -= removed - 1;
+        }
+        begins[first] = begin;
+        ends[first] = end;
+    }
+
+    /**
+     * mark {@code [begin, end)} as not written, e.g. bytes which failed a check
+     */
+    void remove(long begin, long end) {
+        if (end <= begin) return;
+        // a range around the removed one is cut in two
+        if (count == begins.length) {
+            begins = Arrays.copyOf(begins, count * 2);
+            ends = Arrays.copyOf(ends, count * 2);
+        }
+        int kept = 0;
+        final long[] newBegins = new long[begins.length];
+        final long[] newEnds = new long[ends.length];
+        for (int i = 0; i < count; i++) {
+            if (ends[i] <= begin || begins[i] >= end) {
+                newBegins[kept] = begins[i];
+                newEnds[kept++] = ends[i];
+                continue;
+            }
+            if (begins[i] < begin) {
+                newBegins[kept] = begins[i];
+                newEnds[kept++] = begin;
+            }
+            if (ends[i] > end) {
+                newBegins[kept] = end;
+                newEnds[kept++] = ends[i];
+            }
+        }
+        begins = newBegins;
+        ends = newEnds;
+        count = kept;
+    }
+
+    /**
+     * @return bytes written from position on without a gap
+     */
+    long coveredFrom(long position) {
+        for (int i = 0; i < count; i++) {
+            if (begins[i] > position) return 0;
+            if (ends[i] > position) return ends[i] - position;
+        }
+        return 0;
+    }
+
+    /**
+     * @return written bytes in all ranges
+     */
+    long total() {
+        long total = 0;
+        for (int i = 0; i < count; i++) total += ends[i] - begins[i];
+        return total;
+    }
+
+    int size() {
+        return count;
+    }
+
+    RangeMap copy() {
+        final RangeMap copy = new RangeMap();
+        copy.begins = Arrays.copyOf(begins, Math.max(8, count));
+        copy.ends = Arrays.copyOf(ends, Math.max(8, count));
+        copy.count = count;
+        return copy;
+    }
+
+    void save(File file, int taskId, long taskSize) throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        final FileOutputStream fileOut = new FileOutputStream(temp);
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(taskId);
+            out.writeLong(taskSize);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeLong(begins[i]);
+                out.writeLong(ends[i]);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+        if (!temp.renameTo(file)) throw new IOException("Can't rename " + temp + " to " + file);
+    }
+
+    /**
+     * @return null if there is no map of this task, or it's damaged
+     */
+    static RangeMap load(File file, int taskId, long taskSize) {
+        final DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+            if (in.readInt() != taskId || in.readLong() != taskSize) return null;
+            final int count = in.readInt();
+            if (count < 0) return null;
+            final RangeMap map = new RangeMap();
+            for (int i = 0; i < count; i++) {
+                final long begin = in.readLong();
+                final long end = in.readLong();
+                if (begin < 0 || end > taskSize) return null;
+                map.add(begin, end);
+            }
+            return map;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+}
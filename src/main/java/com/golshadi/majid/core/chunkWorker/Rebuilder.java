@@ -1,85 +1,196 @@
 package com.golshadi.majid.core.chunkWorker;
 
-import com.golshadi.majid.Utils.helper.FileUtils;
+import android.os.SystemClock;
+
 import com.golshadi.majid.database.ChunksDataSource;
 import com.golshadi.majid.database.elements.Chunk;
 import com.golshadi.majid.database.elements.Task;
+import com.golshadi.majid.report.ReportStructure;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.List;
 
+import timber.log.Timber;
+
 /**
  * Created by Majid Golshadi on 4/15/2014.
+ * <p>
+ * Appends chunk files of a task to its output file in file order. While task downloads,
+ * {@link Moderator} hands it every finished chunk right behind the merged part, so the
+ * output grows as chunks arrive and only the unmerged tail is left at the end. First chunk
+ * file is renamed to output, the rest are appended with {@link FileChannel#transferTo} so
+ * no byte passes through java, and output is synced and closed once per merge. A merged
+ * chunk is synced to disk before its row and file are dropped, so the first remaining
+ * chunk always begins where the merged part of output ends. After a crash output is cut
+ * back to there on first merge. A task with a digest hashes each merged part right after
+ * merging it, from page cache, and checks the digest when the last chunk is merged.
  */
-public class Rebuilder extends Thread{
+public class Rebuilder {
 
-    final List<Chunk> taskChunks;
     final Task task;
     final Moderator observer;
+    private long merged = -1; // length of output, -1 until first merge
+    private volatile boolean cancelled = false;
 
-    public Rebuilder(Task task, List<Chunk> taskChunks, Moderator moderator){
-        this.taskChunks = taskChunks;
+    public Rebuilder(Task task, Moderator moderator) {
         this.task = task;
         this.observer = moderator;
     }
 
-    @Override
-    public void run() {
+    /**
+     * task is gone, merge in progress stops quietly
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * append every chunk of task, then the task ends
+     */
+    public void finish(List<Chunk> taskChunks) {
         // notify to developer------------------------------------------------------------
         observer.downloadManagerListener.OnDownloadRebuildStart(task.id);
 
-        final File file = new File(task.save_address, task.name);
-
-        FileOutputStream finalFile;
-        try {
-            // append = false : overwrite existing file
-            finalFile = new FileOutputStream(file, false);
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-            observer.error(task.id, "Can't create output file: " + file);
-            return;
-        }
+        if (!merge(taskChunks, true)) return;
 
-        byte[] readBuffer = new byte[1024];
-        int read;
-        for (Chunk chunk : taskChunks) {
-            FileInputStream chFileIn;
+        final TaskVerifier verifier = observer.takeVerifier(task);
+        if (verifier != null) {
+            final File file = new File(task.save_address, task.name);
+            String mismatch;
             try {
-                chFileIn = FileUtils.getInputStream(task.save_address, ChunksDataSource.getChunkFileName(chunk.id));
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-                observer.error(task.id, "Chunk file not found");
+                mismatch = verifier.check(file, file.length());
+            } catch (IOException e) {
+                Timber.e(e, "[%d] Verify output file failed", task.id);
+                mismatch = "Verify output file error: " + e.getMessage();
+            }
+            if (mismatch != null) {
+                observer.error(task.id, mismatch);
                 return;
             }
+        }
+        observer.reBuildIsDone(task, taskChunks);
+    }
 
-            try {
-                while ((read = chFileIn.read(readBuffer)) > 0) {
-                    finalFile.write(readBuffer, 0, read);
+    /**
+     * append finished chunks which follow the merged part, chunks merged before are skipped
+     *
+     * @param chunks in file order
+     * @param all    every chunk must be merged, a gap is an error
+     * @return false if merging failed, task is failed then
+     */
+    synchronized boolean merge(List<Chunk> chunks, boolean all) {
+        if (cancelled) return false;
+        final File file = new File(task.save_address, task.name);
+        final List<Chunk> appended = new ArrayList<>();
+        FileChannel output = null;
+        long copied = 0;
+        long copyTime = 0;
+        try {
+            for (Chunk chunk : chunks) {
+                if (merged < 0) {
+                    merged = chunk.begin;
+                    cutOutput(file, merged);
+                }
+                if (chunk.begin < merged) continue;
+                if (chunk.begin > merged) {
+                    if (!all) break;
+                    throw new IOException("No chunk at " + merged);
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
-                observer.error(task.id, "Merge chunk files error: " + e);
-                return;
-            }
 
+                final File chunkFile = new File(task.save_address, ChunksDataSource.getChunkFileName(chunk.id));
+                if (!chunkFile.exists()) {
+                    if (!cancelled) observer.error(task.id, "Chunk file not found");
+                    return false;
+                }
+                // first chunk becomes output, it isn't copied at all
+                if (merged == 0 && output == null && moveInto(chunkFile, file)) {
+                    output = new RandomAccessFile(file, "rw").getChannel();
+                    merged = output.size();
+                    output.position(merged);
+                    appended.add(chunk);
+                    continue;
+                }
 
-            try {
-                finalFile.flush();
-            } catch (IOException e) {
-                e.printStackTrace();
-                observer.error(task.id, "Merge chunk files error: " + e);
-                return;
+                if (output == null) {
+                    output = new RandomAccessFile(file, "rw").getChannel();
+                    output.position(merged);
+                }
+                final long started = SystemClock.elapsedRealtime();
+                final FileChannel input = new FileInputStream(chunkFile).getChannel();
+                try {
+                    // kernel copies, no buffer in between
+                    final long size = input.size();
+                    long position = 0;
+                    while (position < size) {
+                        final long transferred = input.transferTo(position, size - position, output);
+                        if (transferred <= 0) throw new IOException("Chunk file " + chunk.id + " shrank while merging");
+                        position += transferred;
+                    }
+                    merged += size;
+                    copied += size;
+                } finally {
+                    input.close();
+                }
+                copyTime += SystemClock.elapsedRealtime() - started;
+                appended.add(chunk);
+            }
+            if (output != null) output.force(true);
+        } catch (IOException e) {
+            Timber.e(e, "[%d] Merge chunk files failed", task.id);
+            // output may hold part of a chunk, next merge cuts it
+            merged = -1;
+            if (!cancelled) observer.error(task.id, "Merge chunk files error: " + e);
+            return false;
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException ignore) {
+                }
             }
+        }
 
+        for (Chunk chunk : appended) observer.chunkMerged(task, chunk);
+        if (!appended.isEmpty()) {
+            final ReportStructure report = observer.getReport(task.id);
+            if (report != null) report.addMerged(copied, copyTime);
+            Timber.d("[%d] Merged %d chunks, %d bytes copied in %d ms, output is %d bytes",
+                    task.id, appended.size(), copied, copyTime, merged);
+            // merged part won't change anymore, hash it while it's in page cache
+            final TaskVerifier verifier = cancelled ? null : observer.verifierFor(task);
+            if (verifier != null) {
+                try {
+                    verifier.digestTo(file, merged);
+                } catch (IOException e) {
+                    Timber.e(e, "[%d] Hash merged chunks failed", task.id);
+                    if (!cancelled) observer.error(task.id, "Verify output file error: " + e.getMessage());
+                    return false;
+                }
+            }
         }
+        return true;
+    }
 
-//            finalFile.flush();
-//            finalFile.close();
+    // output is empty, chunk file takes its place
+    private static boolean moveInto(File chunkFile, File file) {
+        if (file.exists() && !file.delete()) return false;
+        return chunkFile.renameTo(file);
+    }
 
-        observer.reBuildIsDone(task, taskChunks);
+    // drop what a merge left past its last synced chunk
+    private static void cutOutput(File file, long length) throws IOException {
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            if (output.length() < length)
+                throw new IOException("Merged part of output file is lost, " + output.length() + " < " + length);
+            output.setLength(length);
+        } finally {
+            output.close();
+        }
     }
 }
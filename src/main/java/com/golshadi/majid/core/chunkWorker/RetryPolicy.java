@@ -0,0 +1,74 @@
+package com.golshadi.majid.core.chunkWorker;
+
+import java.util.Random;
+
+/**
+ * Retry budget and backoff of chunk workers.
+ * <p>
+ * Every chunk gets its own budget of {@code maxRetry} failures, a failure after the
+ * chunk received some bytes doesn't count, so flaky links keep resuming while a dead
+ * link fails fast. Delays grow exponentially from {@code baseDelayMillis} up to
+ * {@code maxDelayMillis} with random jitter, workers of the same task don't retry
+ * at the same moment.
+ */
+public class RetryPolicy {
+
+    public static final RetryPolicy DEFAULT = new RetryPolicy(AsyncWorker.MAX_RETRY, 1000, 30 * 1000);
+
+    private static final Random RANDOM = new Random();
+
+    private final int maxRetry;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    public RetryPolicy(int maxRetry, long baseDelayMillis, long maxDelayMillis) {
+        if (maxRetry < 0)
+            throw new IllegalArgumentException("Invalid max retry: " + maxRetry);
+        if (baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis)
+            throw new IllegalArgumentException("Invalid retry delay: " + baseDelayMillis + ", " + maxDelayMillis);
+        this.maxRetry = maxRetry;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public int getMaxRetry() {
+        return maxRetry;
+    }
+
+    /**
+     * @param offset chunk bytes downloaded when the worker starts
+     */
+    public Budget newBudget(long offset) {
+        return new Budget(offset);
+    }
+
+    /**
+     * retry state of one chunk worker, not thread safe
+     */
+    public class Budget {
+        private int failures;
+        private long lastOffset;
+
+        private Budget(long offset) {
+            this.failures = 0;
+            this.lastOffset = offset;
+        }
+
+        /**
+         * @param offset chunk bytes downloaded when the attempt failed
+         * @return delay before next attempt in milliseconds, -1 if budget is spent
+         */
+        public long nextDelay(long offset) {
+            // attempt made progress
+            if (offset > lastOffset) failures = 0;
+            lastOffset = offset;
+
+            if (failures >= maxRetry) return -1;
+
+            long delay = Math.min(maxDelayMillis, baseDelayMillis << Math.min(failures, 16));
+            failures++;
+            // equal jitter: half of delay is fixed, other half is random
+            return delay / 2 + (long) (RANDOM.nextDouble() * (delay / 2 + 1));
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.golshadi.majid.core.chunkWorker;
+
+import android.os.SystemClock;
+
+import com.golshadi.majid.Utils.helper.FileUtils;
+import com.golshadi.majid.database.elements.Chunk;
+import com.golshadi.majid.database.elements.Task;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * Output file of a {@link com.golshadi.majid.core.enums.StorageMode#SINGLE_FILE} task.
+ * <p>
+ * While downloading the task is a sparse {@code name.part} file of task size, every chunk
+ * worker writes at {@code chunk.begin + chunk.downloaded} through the same {@link FileChannel}.
+ * Synced ranges go to a {@link RangeMap} saved beside it as {@code name.part.map}, in
+ * batches of at most one save per {@link #MAP_SAVE_INTERVAL}, so resume reads one small
+ * file instead of chunk progress rows. Completing the task is an fsync and a rename.
+ */
+public class SingleFileOutput {
+
+    public static final String PART_EXTENSION = ".part";
+    public static final String MAP_EXTENSION = ".map";
+    private static final long MAP_SAVE_INTERVAL = 2000; // ms
+
+    private final Task task;
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final RangeMap written;       // null for un resumable tasks, under itself
+    private final Object saveLock = new Object();
+    private long lastSave = 0;            // under written
+    private boolean dirty = false;        // under written
+    private long version = 0;             // of written, under written
+    private long savedVersion = 0;        // under saveLock
+
+    private SingleFileOutput(Task task, File file, RangeMap written) throws IOException {
+        this.task = task;
+        this.file = file;
+        this.written = written;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.channel = randomAccessFile.getChannel();
+    }
+
+    public static File partFile(Task task) {
+        return new File(task.save_address, task.name + PART_EXTENSION);
+    }
+
+    public static File mapFile(Task task) {
+        return new File(task.save_address, task.name + PART_EXTENSION + MAP_EXTENSION);
+    }
+
+    /**
+     * remove part file and its map of a task which won't finish
+     */
+    public static void delete(Task task) {
+        FileUtils.delete(task.save_address, task.name + PART_EXTENSION);
+        FileUtils.delete(task.save_address, task.name + PART_EXTENSION + MAP_EXTENSION);
+    }
+
+    /**
+     * @return true if output was renamed into place, only the task row missed it
+     */
+    public static boolean isFinished(Task task) {
+        return !partFile(task).exists() && new File(task.save_address, task.name).length() > 0;
+    }
+
+    public static SingleFileOutput open(Task task) throws IOException {
+        File folder = new File(task.save_address);
+        if (!(folder.mkdirs() || folder.isDirectory()))
+            throw new IOException("Invalid directory: " + folder);
+
+        // a file named like the task may be anybody's, only part file and its map are ours
+        final File part = partFile(task);
+        RangeMap written = null;
+        if (task.resumable) {
+            written = RangeMap.load(mapFile(task), task.id, task.size);
+            if (written == null) written = new RangeMap();
+        }
+        SingleFileOutput output = new SingleFileOutput(task, part, written);
+        if (task.resumable && task.size > 0 && output.randomAccessFile.length() != task.size) {
+            try {
+                output.randomAccessFile.setLength(task.size);
+            } catch (IOException e) {
+                output.close();
+                throw e;
+            }
+        }
+        return output;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public OutputStream openStream(long position) {
+        return new FileChannelOutputStream(channel, position);
+    }
+
+    /**
+     * set chunk progress from saved map, only ranges in it are known to be in part file.
+     * without a map, e.g. part file is new, chunk starts over
+     */
+    public void restore(Chunk chunk) {
+        if (written == null) return;
+        final long covered;
+        synchronized (written) {
+            covered = written.coveredFrom(chunk.begin);
+        }
+        final long length = Math.min(chunk.end + 1, task.size) - chunk.begin;
+        synchronized (chunk) {
+            chunk.downloaded = Math.min(covered, chunk.end - chunk.begin + 1);
+            if (chunk.downloaded < length) chunk.completed = false;
+        }
+    }
+
+    /**
+     * flush written bytes to the storage device, chunk progress must only be saved after this
+     */
+    public void sync() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * sync and mark {@code [begin, end)} written, map is saved when last save is old enough
+     */
+    public void checkpoint(long begin, long end) throws IOException {
+        sync();
+        if (written == null) return;
+        final RangeMap snapshot;
+        final long snapshotVersion;
+        synchronized (written) {
+            written.add(begin, end);
+            dirty = true;
+            final long now = SystemClock.elapsedRealtime();
+            if (now - lastSave < MAP_SAVE_INTERVAL) return;
+            lastSave = now;
+            dirty = false;
+            snapshot = written.copy();
+            snapshotVersion = ++version;
+        }
+        saveMap(snapshot, snapshotVersion);
+    }
+
+    /**
+     * mark chunk ranges written and save map now if anything is new, call after {@link #sync()}
+     *
+     * @param downloaded synced progress of every chunk, same order
+     */
+    public void saveProgress(List<Chunk> chunks, long[] downloaded) throws IOException {
+        if (written == null) return;
+        final RangeMap snapshot;
+        final long snapshotVersion;
+        synchronized (written) {
+            for (int i = 0; i < downloaded.length; i++) {
+                if (downloaded[i] <= 0) continue;
+                written.add(chunks.get(i).begin, chunks.get(i).begin + downloaded[i]);
+                dirty = true;
+            }
+            if (!dirty) return;
+            lastSave = SystemClock.elapsedRealtime();
+            dirty = false;
+            snapshot = written.copy();
+            snapshotVersion = ++version;
+        }
+        saveMap(snapshot, snapshotVersion);
+    }
+
+    /**
+     * forget {@code [begin, end)} was written and save map now, so a resume downloads it again
+     */
+    public void unmark(long begin, long end) throws IOException {
+        if (written == null) return;
+        final RangeMap snapshot;
+        final long snapshotVersion;
+        synchronized (written) {
+            written.remove(begin, end);
+            lastSave = SystemClock.elapsedRealtime();
+            dirty = false;
+            snapshot = written.copy();
+            snapshotVersion = ++version;
+        }
+        saveMap(snapshot, snapshotVersion);
+    }
+
+    private void saveMap(RangeMap snapshot, long snapshotVersion) throws IOException {
+        synchronized (saveLock) {
+            // a newer snapshot got here first
+            if (snapshotVersion <= savedVersion) return;
+            snapshot.save(mapFile(task), task.id, task.size);
+            savedVersion = snapshotVersion;
+        }
+    }
+
+    /**
+     * sync and close the file, then rename it to task name
+     *
+     * @param length real file length, -1 to keep the preallocated length
+     *               (un resumable tasks don't know their size before finishing)
+     */
+    public void finish(long length) throws IOException {
+        try {
+            if (length >= 0) channel.truncate(length);
+            channel.force(true);
+        } finally {
+            close();
+        }
+        final File target = new File(task.save_address, task.name);
+        if (target.exists() && !target.delete()) throw new IOException("Can't replace " + target);
+        if (!file.renameTo(target)) throw new IOException("Can't rename " + file + " to " + target);
+        FileUtils.delete(task.save_address, task.name + PART_EXTENSION + MAP_EXTENSION);
+    }
+
+    public void close() {
+        try {
+            randomAccessFile.close();
+        } catch (IOException e) {
+            Timber.e(e, "Close output file %s", file);
+        }
+    }
+}
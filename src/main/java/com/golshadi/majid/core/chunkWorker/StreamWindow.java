@@ -0,0 +1,98 @@
+package com.golshadi.majid.core.chunkWorker;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Ranges the {@link TaskInputStream}s open on one task read next.
+ * <p>
+ * Every stream wants {@code [position, position + window size)}. {@link Moderator} parks
+ * chunks of the task whose remaining range is outside all of them and starts them once a
+ * stream gets there, so connections follow the readers through the file. Readers waiting
+ * for bytes are woken by {@link #dataArrived()}, which takes no lock while nobody waits.
+ */
+class StreamWindow {
+
+    private final List<TaskInputStream> streams = new CopyOnWriteArrayList<>();
+    private final Object lock = new Object();
+    private volatile int waiters = 0;   // changed under lock
+    private int signals = 0;            // under lock
+
+    void add(TaskInputStream stream) {
+        streams.add(stream);
+    }
+
+    /**
+     * @return true if no stream is left
+     */
+    boolean remove(TaskInputStream stream) {
+        streams.remove(stream);
+        return streams.isEmpty();
+    }
+
+    /**
+     * @return true if a stream reads part of {@code [begin, end]} soon, or no stream is open
+     */
+    boolean wants(long begin, long end) {
+        if (streams.isEmpty()) return true;
+        for (TaskInputStream stream : streams) {
+            final long position = stream.position();
+            if (begin < position + stream.windowSize && end >= position) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return last offset of the windows holding offset, -1 if none does.
+     * no limit when no stream is open
+     */
+    long windowEnd(long offset) {
+        if (streams.isEmpty()) return Long.MAX_VALUE;
+        long end = -1;
+        for (TaskInputStream stream : streams) {
+            final long position = stream.position();
+            if (offset >= position && offset < position + stream.windowSize)
+                end = Math.max(end, position + stream.windowSize - 1);
+        }
+        return end;
+    }
+
+    /**
+     * called on every progress report of the task, hot path
+     */
+    void dataArrived() {
+        if (waiters > 0) wake();
+    }
+
+    void wake() {
+        synchronized (lock) {
+            signals++;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * @return signal count to pass to {@link #await(int, long)} after looking for bytes
+     */
+    int startWaiting() {
+        synchronized (lock) {
+            waiters++;
+            return signals;
+        }
+    }
+
+    /**
+     * sleep unless a signal came since {@link #startWaiting()}
+     */
+    void await(int seen, long timeout) throws InterruptedException {
+        synchronized (lock) {
+            if (signals == seen) lock.wait(timeout);
+        }
+    }
+
+    void stopWaiting() {
+        synchronized (lock) {
+            waiters--;
+        }
+    }
+}
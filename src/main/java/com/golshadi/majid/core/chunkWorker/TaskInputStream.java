@@ -0,0 +1,266 @@
+package com.golshadi.majid.core.chunkWorker;
+
+import com.golshadi.majid.Utils.helper.FileUtils;
+import com.golshadi.majid.core.enums.StorageMode;
+import com.golshadi.majid.core.enums.TaskStates;
+import com.golshadi.majid.database.ChunksDataSource;
+import com.golshadi.majid.database.elements.Chunk;
+import com.golshadi.majid.database.elements.Task;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Reads a task while it downloads, open it with
+ * {@link com.golshadi.majid.core.DownloadManagerPro#openStream(int, long)}.
+ * <p>
+ * Bytes are read from where they are already written: the output file, chunk ranges of
+ * a single file task's part file or chunk files. A read of missing bytes blocks until they arrive.
+ * While the stream is open, chunks of the task are downloaded in file order from its
+ * position up to {@link #windowSize} bytes ahead, and a {@link #seek(long)} far ahead of a
+ * worker splits the chunk so a new worker starts right there. The task itself must be
+ * started, a paused task only blocks readers. One reader at a time, {@link #close()} may be
+ * called from any thread and wakes it.
+ */
+public class TaskInputStream extends InputStream {
+
+    public static final long DEFAULT_WINDOW_SIZE = 8 * 1024 * 1024; // 8MB
+    // state changes don't wake readers, look again this often
+    private static final long WAIT_TIMEOUT = 500; // ms
+
+    final int taskId;
+    final long windowSize;
+    private final Moderator moderator;
+    private final StreamWindow window;
+
+    private volatile long position = 0;
+    private long reportedPosition = 0;   // window of moderator starts here
+    private volatile boolean closed = false;
+
+    // open file holding position: file offset = position - sourceShift, readable in [sourceBegin, sourceLimit)
+    private File sourceFile;
+    private FileChannel source;
+    private long sourceShift;
+    private long sourceBegin;
+    private long sourceLimit;
+
+    TaskInputStream(int taskId, long windowSize, Moderator moderator, StreamWindow window) {
+        if (windowSize <= 0) throw new IllegalArgumentException("Invalid window size: " + windowSize);
+        this.taskId = taskId;
+        this.windowSize = windowSize;
+        this.moderator = moderator;
+        this.window = window;
+    }
+
+    StreamWindow getWindow() {
+        return window;
+    }
+
+    public long position() {
+        return position;
+    }
+
+    /**
+     * @return task size, 0 if server didn't tell it
+     */
+    public long length() {
+        final Task task = moderator.getTask(taskId);
+        return task == null ? 0 : task.size;
+    }
+
+    /**
+     * move read position, chunk holding it is downloaded first
+     */
+    public synchronized void seek(long newPosition) throws IOException {
+        if (newPosition < 0) throw new IllegalArgumentException("Negative position: " + newPosition);
+        ensureOpen();
+        position = newPosition;
+        reportedPosition = newPosition;
+        moderator.streamMoved(this, true);
+    }
+
+    @Override
+    public synchronized long skip(long n) throws IOException {
+        if (n <= 0) return 0;
+        final long size = length();
+        if (size > 0) n = Math.max(0, Math.min(n, size - position));
+        seek(position + n);
+        return n;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) throw new IndexOutOfBoundsException();
+        ensureOpen();
+        if (len == 0) return 0;
+
+        boolean cut = false;
+        while (true) {
+            if (source != null && position >= sourceBegin && position < sourceLimit) {
+                final int max = (int) Math.min(len, sourceLimit - position);
+                final int read = source.read(ByteBuffer.wrap(b, off, max), position - sourceShift);
+                if (read > 0) {
+                    position += read;
+                    if (position - reportedPosition >= windowSize / 4) {
+                        reportedPosition = position;
+                        moderator.streamMoved(this, false);
+                    }
+                    return read;
+                }
+                // file was cut or replaced, open it again
+                closeSource();
+                cut = true;
+            }
+            if (!awaitData(cut)) return -1;
+        }
+    }
+
+    /**
+     * @return bytes readable without blocking
+     */
+    @Override
+    public synchronized int available() throws IOException {
+        ensureOpen();
+        if (source == null || position < sourceBegin) return 0;
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, sourceLimit - position));
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        moderator.closeStream(this);
+        // blocked reader gives up the lock
+        window.wake();
+        synchronized (this) {
+            closeSource();
+        }
+    }
+
+    /*
+     * block until bytes at position are written, return false at end of file.
+     * a stale source waits once before looking again, it may have been read too early
+     */
+    private boolean awaitData(boolean stale) throws IOException {
+        boolean moved = false;
+        while (true) {
+            final int seen = window.startWaiting();
+            try {
+                if (!stale) {
+                    final int found = locate();
+                    if (found != 0) return found > 0;
+                    // reader is stuck here, make sure a worker comes
+                    if (!moved && reportedPosition != position) {
+                        reportedPosition = position;
+                        moderator.streamMoved(this, false);
+                        moved = true;
+                        continue;
+                    }
+                }
+                stale = false;
+                window.await(seen, WAIT_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for task " + taskId);
+            } finally {
+                window.stopWaiting();
+            }
+            ensureOpen();
+        }
+    }
+
+    /*
+     * open the file holding position, return 1 if bytes are readable,
+     * 0 if they aren't written yet and -1 at end of file
+     */
+    private int locate() throws IOException {
+        final Task task = moderator.getTask(taskId);
+        if (task == null) throw new IOException("Task is deleted: " + taskId);
+        if (task.state == TaskStates.ERROR) throw new IOException("Download failed: " + task.errorMessage);
+        if (task.size > 0 && position >= task.size) return -1;
+
+        final File output = new File(task.save_address, task.name);
+        if (task.state == TaskStates.END) {
+            final long length = output.length();
+            if (position >= length) return -1;
+            return openSource(output, 0, 0, length);
+        }
+
+        final List<Chunk> chunks = moderator.getTaskChunks(taskId);
+        long firstBegin = Long.MAX_VALUE;
+        long written = 0;
+        boolean finished = !chunks.isEmpty();
+        for (Chunk chunk : chunks) {
+            final long begin;
+            long downloaded;
+            synchronized (chunk) {
+                begin = chunk.begin;
+                downloaded = chunk.downloaded;
+                finished &= chunk.completed;
+            }
+            final String chunkFileName = ChunksDataSource.getChunkFileName(chunk.id);
+            // chunk file length is its progress, even before task starts
+            if (task.storageMode == StorageMode.CHUNK_FILES)
+                downloaded = FileUtils.size(task.save_address, chunkFileName);
+            firstBegin = Math.min(firstBegin, begin);
+            written = Math.max(written, begin + downloaded);
+
+            if (position < begin || position >= begin + downloaded) continue;
+            final int opened = task.storageMode == StorageMode.SINGLE_FILE
+                    ? openSource(SingleFileOutput.partFile(task), 0, begin, begin + downloaded)
+                    : openSource(new File(task.save_address, chunkFileName), begin, begin, begin + downloaded);
+            if (opened != 0) return opened;
+        }
+        // merged chunks are gone, output holds everything before first chunk left
+        if (task.storageMode == StorageMode.CHUNK_FILES && position < firstBegin && firstBegin != Long.MAX_VALUE)
+            return openSource(output, 0, 0, firstBegin);
+        // un resumable task doesn't know its size
+        if (finished && task.size <= 0 && position >= written) return -1;
+        return 0;
+    }
+
+    // return 1 if open, 0 if file is gone, a merge moved it
+    private int openSource(File file, long shift, long begin, long limit) throws IOException {
+        if (!file.equals(sourceFile)) {
+            closeSource();
+            try {
+                source = new FileInputStream(file).getChannel();
+            } catch (FileNotFoundException e) {
+                return 0;
+            }
+            sourceFile = file;
+        }
+        sourceShift = shift;
+        sourceBegin = begin;
+        sourceLimit = limit;
+        return 1;
+    }
+
+    private void closeSource() {
+        if (source == null) return;
+        try {
+            source.close();
+        } catch (IOException ignore) {
+        }
+        source = null;
+        sourceFile = null;
+        sourceLimit = 0;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+    }
+}
@@ -0,0 +1,277 @@
+package com.golshadi.majid.core.chunkWorker;
+
+import com.golshadi.majid.Utils.helper.BufferPool;
+import com.golshadi.majid.Utils.helper.Hasher;
+import com.golshadi.majid.core.enums.DigestAlgorithm;
+import com.golshadi.majid.core.enums.StorageMode;
+import com.golshadi.majid.database.elements.Chunk;
+import com.golshadi.majid.database.elements.Task;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+
+import timber.log.Timber;
+
+/**
+ * Checks what chunk workers wrote against the digests given to a task.
+ * <p>
+ * Piece digests cover consecutive {@code pieceSize} ranges of the file. A piece is hashed as
+ * soon as every chunk over it is finished, on task executor, so pieces of chunks finishing
+ * out of order hash in parallel and a bad piece alone is downloaded again. The digest of the
+ * whole file is fed in file order while the checked prefix grows, from page cache, so only
+ * the tail is left to hash when the task completes. State lives in memory, after a restart
+ * pieces are hashed again when their chunks report finished.
+ * <p>
+ * Pieces are only checked while a resumable {@link StorageMode#SINGLE_FILE} task downloads,
+ * its chunks write in place and a range of them can be downloaded again.
+ */
+class TaskVerifier {
+
+    private final int taskId;
+    private final long size;
+    private final int algorithm;
+    private final String digest;          // null if only pieces are checked
+    private final long pieceSize;
+    private final String[] pieces;        // null if no piece digests
+    private final boolean inPlace;        // chunks are written into output file
+
+    private final BitSet verified = new BitSet();  // under this
+    private final BitSet claimed = new BitSet();   // being hashed, under this
+
+    private final Object digestLock = new Object();
+    private Hasher fileHasher;            // under digestLock
+    private long hashed = 0;              // under digestLock
+
+    private TaskVerifier(Task task, String[] pieces) {
+        this.taskId = task.id;
+        this.size = task.size;
+        this.algorithm = task.digestAlgorithm;
+        this.digest = task.digest == null ? null : task.digest.toLowerCase(Locale.US);
+        this.pieceSize = task.pieceSize;
+        this.pieces = pieces;
+        this.inPlace = task.storageMode == StorageMode.SINGLE_FILE && task.resumable;
+        this.fileHasher = digest == null ? null : Hasher.create(algorithm);
+    }
+
+    /**
+     * @return null if task has nothing to check
+     */
+    static TaskVerifier of(Task task) {
+        if (task.digestAlgorithm == DigestAlgorithm.NONE) return null;
+        String[] pieces = null;
+        // bad pieces are downloaded again by range
+        if (task.pieceDigests != null && task.pieceSize > 0 && task.resumable && task.size > 0
+                && task.storageMode == StorageMode.SINGLE_FILE) {
+            pieces = task.pieceDigests.toLowerCase(Locale.US).split(",");
+            if (pieces.length != (task.size + task.pieceSize - 1) / task.pieceSize) {
+                Timber.w("[%d] %d piece digests don't cover %d bytes, ignored", task.id, pieces.length, task.size);
+                pieces = null;
+            }
+        }
+        if (task.digest == null && pieces == null) return null;
+        return new TaskVerifier(task, pieces);
+    }
+
+    /**
+     * @return true if {@link #verify} runs on finished chunks, otherwise file is hashed
+     * while merged or at the end
+     */
+    boolean checksWhileDownloading() {
+        return inPlace;
+    }
+
+    synchronized boolean allPiecesVerified() {
+        return pieces == null || verified.nextClearBit(0) >= pieces.length;
+    }
+
+    synchronized int verifiedPieces() {
+        return verified.cardinality();
+    }
+
+    /**
+     * @return true if a piece is neither verified nor hashed by someone now
+     */
+    synchronized boolean hasUnclaimedPieces() {
+        if (pieces == null) return false;
+        for (int piece = verified.nextClearBit(0); piece < pieces.length; piece = verified.nextClearBit(piece + 1)) {
+            if (!claimed.get(piece)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * hash pieces under finished chunks and clear of running ones, then feed checked
+     * prefix to the file digest
+     *
+     * @param file     output file, chunks are at their offsets
+     * @param finished completed chunks no worker writes to anymore
+     * @param running  chunks still written, or waiting to be
+     * @return {@code [begin, end]} of pieces which don't match their digest
+     */
+    List<long[]> verify(File file, List<Chunk> finished, List<Chunk> running) throws IOException {
+        long firstRunning = Long.MAX_VALUE;
+        for (Chunk chunk : running) firstRunning = Math.min(firstRunning, chunk.begin);
+
+        final List<long[]> bad = new ArrayList<>();
+        final RangeMap done;
+        if (pieces != null) {
+            final List<Integer> mine;
+            synchronized (this) {
+                // a piece downloaded again has its chunks rewound before it's released
+                done = completedRanges(finished);
+                mine = claimPieces(done, running);
+            }
+            try {
+                for (int i = 0; i < mine.size(); i++) {
+                    final int piece = mine.get(i);
+                    final long begin = piece * pieceSize;
+                    final long end = Math.min(begin + pieceSize, size);
+                    if (matches(file, piece)) {
+                        synchronized (this) {
+                            claimed.clear(piece);
+                            verified.set(piece);
+                        }
+                        mine.set(i, -1);
+                    } else {
+                        Timber.w("[%d] Piece %d [%d-%d] doesn't match its digest", taskId, piece, begin, end - 1);
+                        bad.add(new long[]{begin, end - 1});
+                    }
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    for (int piece : mine) if (piece >= 0) claimed.clear(piece);
+                }
+                throw e;
+            }
+        } else {
+            done = completedRanges(finished);
+        }
+
+        // prefix which won't be written again
+        long checked = Math.min(done.coveredFrom(0), firstRunning);
+        if (pieces != null) {
+            synchronized (this) {
+                checked = Math.min(checked, Math.min(verified.nextClearBit(0) * pieceSize, size));
+            }
+        }
+        digestTo(file, checked);
+        return bad;
+    }
+
+    /**
+     * bad piece stays claimed until its chunks are rewound, so nobody hashes it meanwhile
+     */
+    synchronized void release(long begin) {
+        claimed.clear((int) (begin / pieceSize));
+    }
+
+    private RangeMap completedRanges(List<Chunk> finished) {
+        final RangeMap done = new RangeMap();
+        for (Chunk chunk : finished) {
+            synchronized (chunk) {
+                if (!chunk.completed) continue;
+                done.add(chunk.begin, size > 0 ? Math.min(chunk.end + 1, size) : chunk.end + 1);
+            }
+        }
+        return done;
+    }
+
+    // must hold this
+    private List<Integer> claimPieces(RangeMap done, List<Chunk> running) {
+        final List<Integer> mine = new ArrayList<>();
+        for (int piece = verified.nextClearBit(0); piece < pieces.length; piece = verified.nextClearBit(piece + 1)) {
+            if (claimed.get(piece)) continue;
+            final long begin = piece * pieceSize;
+            final long end = Math.min(begin + pieceSize, size);
+            if (done.coveredFrom(begin) < end - begin) continue;
+            boolean written = false;
+            for (Chunk chunk : running) {
+                if (chunk.begin < end && chunk.end >= begin) {
+                    written = true;
+                    break;
+                }
+            }
+            if (written) continue;
+            claimed.set(piece);
+            mine.add(piece);
+        }
+        return mine;
+    }
+
+    /**
+     * feed file digest up to end, bytes before it mustn't change anymore
+     */
+    void digestTo(File file, long end) throws IOException {
+        synchronized (digestLock) {
+            if (fileHasher == null || end <= hashed) return;
+            hash(file, hashed, end, fileHasher);
+            hashed = end;
+        }
+    }
+
+    /**
+     * hash what is left of file and compare
+     *
+     * @param length file length
+     * @return null if file matches, otherwise why not
+     */
+    String check(File file, long length) throws IOException {
+        // pieces not checked while downloading, e.g. task finished in a previous session
+        if (pieces != null) {
+            for (int piece = 0; piece < pieces.length; piece++) {
+                synchronized (this) {
+                    if (verified.get(piece)) continue;
+                }
+                if (!matches(file, piece)) return "Piece " + piece + " doesn't match its digest";
+                synchronized (this) {
+                    verified.set(piece);
+                }
+            }
+        }
+        synchronized (digestLock) {
+            if (fileHasher == null) return null;
+            if (hashed > length) return "File is shorter than checked part";
+            hash(file, hashed, length, fileHasher);
+            hashed = length;
+            final String actual = Hasher.toHex(fileHasher.digest());
+            if (actual.equals(digest)) {
+                Timber.d("[%d] File digest matches", taskId);
+                return null;
+            }
+            return "Digest mismatch, expected " + digest + " but was " + actual;
+        }
+    }
+
+    private boolean matches(File file, int piece) throws IOException {
+        final long begin = piece * pieceSize;
+        final Hasher hasher = Hasher.create(algorithm);
+        hash(file, begin, Math.min(begin + pieceSize, size), hasher);
+        return Hasher.toHex(hasher.digest()).equals(pieces[piece]);
+    }
+
+    private static void hash(File file, long begin, long end, Hasher hasher) throws IOException {
+        final BufferPool bufferPool = BufferPool.getInstance();
+        final byte[] buffer = bufferPool.acquire();
+        final FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            long position = begin;
+            while (position < end) {
+                final int read = channel.read(ByteBuffer.wrap(buffer, 0,
+                        (int) Math.min(buffer.length, end - position)), position);
+                if (read <= 0) throw new IOException("File ended at " + position + " while hashing to " + end);
+                hasher.update(buffer, 0, read);
+                position += read;
+            }
+        } finally {
+            channel.close();
+            bufferPool.release(buffer);
+        }
+    }
+}
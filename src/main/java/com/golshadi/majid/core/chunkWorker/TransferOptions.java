@@ -0,0 +1,34 @@
+package com.golshadi.majid.core.chunkWorker;
+
+/**
+ * How chunk workers move bytes from the response body to storage.
+ * <p>
+ * By default a worker reads the body stream into a pooled 32KB buffer and writes it.
+ * With {@code segmentTransfer} it waits until the OkHttp {@code BufferedSource} holds
+ * {@code segmentSize} bytes, gathers them from the Okio segments into one pooled buffer
+ * of that size and writes it at once, a single positional channel write for
+ * single file tasks, so there are far fewer write calls. In both paths progress is reported to {@link Moderator} once every
+ * {@code progressGranularity} bytes instead of once per read.
+ */
+public class TransferOptions {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 256 * 1024; // 256KB
+    public static final int DEFAULT_PROGRESS_GRANULARITY = 64 * 1024; // 64KB
+
+    public static final TransferOptions DEFAULT =
+            new TransferOptions(false, DEFAULT_SEGMENT_SIZE, DEFAULT_PROGRESS_GRANULARITY);
+
+    public final boolean segmentTransfer;
+    public final int segmentSize;
+    public final int progressGranularity;
+
+    public TransferOptions(boolean segmentTransfer, int segmentSize, int progressGranularity) {
+        if (segmentSize <= 0)
+            throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+        if (progressGranularity < 0)
+            throw new IllegalArgumentException("Invalid progress granularity: " + progressGranularity);
+        this.segmentTransfer = segmentTransfer;
+        this.segmentSize = segmentSize;
+        this.progressGranularity = progressGranularity;
+    }
+}
@@ -0,0 +1,16 @@
+package com.golshadi.majid.core.enums;
+
+/**
+ * Hash of a task's digests, see {@link com.golshadi.majid.core.DownloadManagerPro#setTaskDigests}.
+ */
+public class DigestAlgorithm {
+
+    public static final int NONE = 0;
+    public static final int SHA_256 = 1;
+    public static final int MD5 = 2;
+
+    /**
+     * 4 bytes, big endian. cheapest to compute, catches corruption but not tampering
+     */
+    public static final int CRC32C = 3;
+}
@@ -0,0 +1,20 @@
+package com.golshadi.majid.core.enums;
+
+/**
+ * How chunk data is stored on disk while a task is downloading.
+ */
+public class StorageMode {
+
+    /**
+     * default. every chunk goes to its own "._id" file, {@code Rebuilder} appends them to
+     * the output file as soon as every chunk before them is finished
+     */
+    public static final int CHUNK_FILES = 0;
+
+    /**
+     * every chunk writes at its own offset of a sparse "name.part" file and synced
+     * ranges are kept in a small "name.part.map" beside it, finishing a task is an fsync
+     * and a rename
+     */
+    public static final int SINGLE_FILE = 1;
+}
@@ -1,8 +1,10 @@
 package com.golshadi.majid.core.mainWorker;
 
 import com.golshadi.majid.Utils.helper.FileUtils;
+import com.golshadi.majid.core.chunkWorker.AdaptiveConnections;
 import com.golshadi.majid.core.chunkWorker.Moderator;
 import com.golshadi.majid.core.chunkWorker.Rebuilder;
+import com.golshadi.majid.core.enums.StorageMode;
 import com.golshadi.majid.core.enums.TaskStates;
 import com.golshadi.majid.database.ChunksDataSource;
 import com.golshadi.majid.database.TasksDataSource;
@@ -12,6 +14,7 @@ import com.golshadi.majid.database.elements.Task;
 import java.io.IOException;
 import java.util.List;
 
+import okhttp3.Call;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
@@ -20,7 +23,7 @@ import timber.log.Timber;
 /**
  * Created by Majid Golshadi on 4/20/2014.
  */
-public class AsyncStartDownload extends Thread {
+public class AsyncStartDownload implements Runnable {
 
     private static final long MEGA_BYTE = 1024 * 1024L;
     private final TasksDataSource tasksDataSource;
@@ -28,6 +31,8 @@ public class AsyncStartDownload extends Thread {
     private final Moderator moderator;
     private final Task task;
     private final OkHttpClient okHttpClient;
+    private volatile boolean cancelled = false;
+    private volatile Call probe;              // file info request in flight
 
     public AsyncStartDownload(TasksDataSource taskDs, ChunksDataSource chunkDs,
                               Moderator moderator, Task task, OkHttpClient okHttpClient) {
@@ -38,8 +43,28 @@ public class AsyncStartDownload extends Thread {
         this.okHttpClient = okHttpClient;
     }
 
+    /**
+     * stop probing or chunk setup between steps. never interrupts, a finish or merge
+     * of a downloaded task runs to its end
+     */
+    public void cancel() {
+        cancelled = true;
+        final Call call = probe;
+        if (call != null) call.cancel();
+    }
+
     @Override
     public void run() {
+        try {
+            startTask();
+        } catch (RuntimeException e) {
+            // e.g. a redirect or bad content length, task mustn't hold its queue slot
+            Timber.e(e, "[%d] Start task failed.", task.id);
+            moderator.error(task.id, "Start task failed: " + e);
+        }
+    }
+
+    private void startTask() {
         // switch on task state
         switch (task.state) {
 
@@ -52,10 +77,15 @@ public class AsyncStartDownload extends Thread {
 
                 try {
                     getTaskFileInfo(task);
+                    if (cancelled) return;
                     convertTaskToChunks(task);
-                    task.state = TaskStates.READY;
+                    // paused or failed while probing, file info is kept anyway
+                    final boolean ready = moderator.getStateMachine().move(task, TaskStates.INIT, TaskStates.READY);
                     tasksDataSource.update(task);
+                    if (!ready) return;
                 } catch (IOException e) {
+                    // paused while probing, not an error
+                    if (cancelled) return;
                     e.printStackTrace();
                     Timber.e(e, "[%d] Init task failed.", task.id);
                     moderator.error(task.id, "Init task failed: " + e.getMessage());
@@ -71,6 +101,7 @@ public class AsyncStartDownload extends Thread {
                 //          * insert new chunk
                 //          * make new file
                 // -->start to download any chunk
+                if (cancelled) return;
                 if (!task.resumable) {
                     deleteChunk(task);
                     try {
@@ -82,6 +113,7 @@ public class AsyncStartDownload extends Thread {
                         break;
                     }
                 }
+                if (cancelled) return;
                 Timber.d("[%d] Start download", task.id);
                 moderator.start(task);
                 break;
@@ -90,9 +122,12 @@ public class AsyncStartDownload extends Thread {
                 // -->rebuild general file
                 // -->save in database
                 // -->report to user
-                Thread rb = new Rebuilder(task,
-                        chunksDataSource.chunksRelatedTask(task.id), moderator);
-                rb.run();
+                if (task.storageMode == StorageMode.SINGLE_FILE) {
+                    moderator.finishSingleFile(task, chunksDataSource.chunksRelatedTask(task.id));
+                    break;
+                }
+                // already on task executor
+                new Rebuilder(task, moderator).finish(chunksDataSource.chunksRelatedTask(task.id));
 
             case TaskStates.END:
 
@@ -107,7 +142,15 @@ public class AsyncStartDownload extends Thread {
             Request request = new Request.Builder().head().url(task.url)
                     .header("Range", "bytes=0-")
                     .build();
-            Response response = okHttpClient.newCall(request).execute();
+            final Call call = okHttpClient.newCall(request);
+            probe = call;
+            if (cancelled) call.cancel();
+            Response response;
+            try {
+                response = call.execute();
+            } finally {
+                probe = null;
+            }
             if (!response.isSuccessful()) throw new IOException("Given URL response non-success status code: " + response.code() + ", " + response.message());
             if (response.isRedirect()) throw new IllegalStateException("OkHttpClient not following redirect");
             task.size = Long.parseLong(response.header("Content-Length", "0"));
@@ -133,15 +176,24 @@ public class AsyncStartDownload extends Thread {
                     task.chunks = f * 2;
         }
 
+        // adaptive tasks start with few chunks and split them while speed grows,
+        // task.chunks is their ceiling
+        int connections = task.chunks;
+        final AdaptiveConnections adaptive = moderator.getAdaptiveConnections();
+        if (task.resumable && adaptive != null)
+            connections = adaptive.initialConnections(task.url, task.chunks);
 
         // Change Task State
         int firstChunkID =
-                chunksDataSource.insertChunks(task);
-        makeFileForChunks(firstChunkID, task);
+                chunksDataSource.insertChunks(task, connections);
+        makeFileForChunks(firstChunkID, task, connections);
     }
 
-    private void makeFileForChunks(int firstId, Task task) throws IOException {
-        for (int endId = firstId + task.chunks; firstId < endId; firstId++)
+    private void makeFileForChunks(int firstId, Task task, int count) throws IOException {
+        // single file chunks are written into output file, Moderator creates it
+        if (task.storageMode == StorageMode.SINGLE_FILE) return;
+
+        for (int endId = firstId + count; firstId < endId; firstId++)
             FileUtils.create(task.save_address, ChunksDataSource.getChunkFileName(firstId));
         // task chunk file name: ._1 ._2 ...
     }
@@ -152,14 +204,14 @@ public class AsyncStartDownload extends Thread {
 
         for (Chunk chunk : TaskChunks) {
             FileUtils.delete(task.save_address, ChunksDataSource.getChunkFileName(chunk.id));
-            chunksDataSource.delete(chunk.id);
         }
+        chunksDataSource.deleteChunksOfTask(task.id);
     }
 
     private void generateNewChunk(Task task) throws IOException {
         int firstChunkID =
                 chunksDataSource.insertChunks(task);
-        makeFileForChunks(firstChunkID, task);
+        makeFileForChunks(firstChunkID, task, task.chunks);
     }
 
 }
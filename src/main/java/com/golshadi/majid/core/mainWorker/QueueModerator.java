@@ -3,6 +3,7 @@ package com.golshadi.majid.core.mainWorker;
 import android.util.SparseArray;
 
 import com.golshadi.majid.Utils.QueueObserver;
+import com.golshadi.majid.core.chunkWorker.HostStats;
 import com.golshadi.majid.core.chunkWorker.Moderator;
 import com.golshadi.majid.database.ChunksDataSource;
 import com.golshadi.majid.database.TasksDataSource;
@@ -28,19 +29,26 @@ public class QueueModerator
         void onQueueChanged(int downloading, int pending);
     }
 
+    // tasks looked at past the head to find a less loaded host
+    private static final int FAIR_LOOKAHEAD = 4;
+
     private final TasksDataSource tasksDataSource;
     private final ChunksDataSource chunksDataSource;
     private final Moderator moderator;
     private int downloadTaskPerTime;
 
-    private final Set<Integer> uncompletedTasks;
-    private final SparseArray<Thread> downloaderList;
+    // all guarded by scheduler
+    private final TaskScheduler scheduler;           // queued tasks
+    private final Set<Integer> uncompletedTasks;     // queued and downloading tasks
+    private final SparseArray<AsyncStartDownload> downloaderList;
+    private final SparseArray<String> taskHosts;     // host of queued and downloading tasks
     private final List<WeakReference<OnQueueChanged>> listeners;
     private final OkHttpClient okHttpClient;
+    private final TaskExecutor taskExecutor;
 
     public QueueModerator(TasksDataSource tasksDataSource, ChunksDataSource chunksDataSource,
                           Moderator localModerator, List<Task> tasks, int downloadPerTime,
-                          OkHttpClient okHttpClient) {
+                          OkHttpClient okHttpClient, TaskExecutor taskExecutor) {
 
         this.tasksDataSource = tasksDataSource;
         this.chunksDataSource = chunksDataSource;
@@ -48,12 +56,19 @@ public class QueueModerator
         this.moderator.setQueueObserver(this);
         this.downloadTaskPerTime = downloadPerTime;
 
+        this.scheduler = new TaskScheduler();
         this.uncompletedTasks = new LinkedHashSet<>();
-        for (Task task : tasks) uncompletedTasks.add(task.id);
+        this.taskHosts = new SparseArray<>();
+        for (Task task : tasks) {
+            uncompletedTasks.add(task.id);
+            scheduler.add(task.id, priorityOf(task), TaskScheduler.NO_DEADLINE, task.size);
+            taskHosts.put(task.id, HostStats.hostOf(task.url));
+        }
 
         this.downloaderList = new SparseArray<>();
         this.listeners = new ArrayList<>();
         this.okHttpClient = okHttpClient;
+        this.taskExecutor = taskExecutor;
     }
 
     public void addOnQueueChangedListener(OnQueueChanged listener) {
@@ -80,43 +95,93 @@ public class QueueModerator
 //        return false;
 //    }
 
+    private static int priorityOf(Task task) {
+        return task.priority ? TaskScheduler.PRIORITY_HIGH : TaskScheduler.PRIORITY_NORMAL;
+    }
+
     public QueueModerator addTask(Task task) {
-        synchronized (uncompletedTasks) {
+        synchronized (scheduler) {
             this.uncompletedTasks.add(task.id);
+            if (!scheduler.contains(task.id))
+                scheduler.add(task.id, priorityOf(task), TaskScheduler.NO_DEADLINE, task.size);
+            this.taskHosts.put(task.id, HostStats.hostOf(task.url));
         }
         notifyListeners();
         return this;
     }
 
     public void removeTask(int token) {
-        synchronized (uncompletedTasks) {
-            synchronized (downloaderList) {
-                this.downloaderList.remove(token);
-                this.uncompletedTasks.remove(token);
-            }
+        synchronized (scheduler) {
+            this.downloaderList.remove(token);
+            this.uncompletedTasks.remove(token);
+            this.scheduler.remove(token);
+            this.taskHosts.remove(token);
         }
         notifyListeners();
     }
 
+    /**
+     * bigger priority starts first, default is {@link TaskScheduler#PRIORITY_HIGH} for
+     * high priority tasks and {@link TaskScheduler#PRIORITY_NORMAL} otherwise.
+     * it's kept in memory only
+     *
+     * @return false if task isn't in queue
+     */
+    public boolean setTaskPriority(int taskId, int priority) {
+        synchronized (scheduler) {
+            return scheduler.setPriority(taskId, priority);
+        }
+    }
+
+    /**
+     * @return priority of task in queue, or its default priority if it isn't queued
+     */
+    public int getTaskPriority(Task task) {
+        synchronized (scheduler) {
+            return scheduler.contains(task.id) ? scheduler.getPriority(task.id) : priorityOf(task);
+        }
+    }
+
+    /**
+     * tasks with same priority start by earlier deadline, kept in memory only
+     *
+     * @param deadline any clock, e.g. System.currentTimeMillis() based,
+     *                 {@link TaskScheduler#NO_DEADLINE} to remove
+     * @return false if task isn't in queue
+     */
+    public boolean setTaskDeadline(int taskId, long deadline) {
+        synchronized (scheduler) {
+            return scheduler.setDeadline(taskId, deadline);
+        }
+    }
+
+    /**
+     * start smaller tasks of same priority and deadline first instead of older ones.
+     * large tasks may wait as long as smaller ones keep coming
+     */
+    public void setSmallestFirst(boolean smallestFirst) {
+        synchronized (scheduler) {
+            scheduler.setSmallestFirst(smallestFirst);
+        }
+    }
+
+    /*
+     * start next tasks of scheduler until downloadTaskPerTime tasks are downloading,
+     * one task row is read per started task
+     */
     public void startQueue() {
         int startedTask = 0;
-        synchronized (uncompletedTasks) {
-            synchronized (downloaderList) {
-                for (Integer taskId : uncompletedTasks) {
-                    if (downloaderList.size() >= downloadTaskPerTime) break;
-                    synchronized (tasksDataSource) {
-                        if (downloaderList.get(taskId) == null) {
-                            final Task task = tasksDataSource.getTaskInfo(taskId);
-                            final Thread downloader =
-                                    new AsyncStartDownload(tasksDataSource, chunksDataSource, moderator, task, okHttpClient);
-                            synchronized (downloaderList) {
-                                downloaderList.put(task.id, downloader);
-                            }
-                            downloader.start();
-                            startedTask++;
-                        }
-                    }
-                }
+        synchronized (scheduler) {
+            while (downloaderList.size() < downloadTaskPerTime) {
+                final int taskId = pollFair();
+                if (taskId < 0) break;
+
+                final Task task = tasksDataSource.getTaskInfo(taskId);
+                final AsyncStartDownload downloader =
+                        new AsyncStartDownload(tasksDataSource, chunksDataSource, moderator, task, okHttpClient);
+                taskExecutor.execute(downloader);
+                downloaderList.put(taskId, downloader);
+                startedTask++;
             }
         }
 
@@ -124,17 +189,58 @@ public class QueueModerator
             notifyListeners();
     }
 
+    /*
+     * must hold scheduler
+     * next task of scheduler, but among the next FAIR_LOOKAHEAD tasks of same priority
+     * the first one whose host has fewest downloading tasks, so hosts take turns.
+     * lookahead is bounded, a queue of one host costs a few polls per start, not all of them.
+     * skipped tasks keep their place
+     */
+    private int pollFair() {
+        int chosen = scheduler.poll();
+        if (chosen < 0) return -1;
+        final int priority = scheduler.getPriority(chosen);
+        int chosenLoad = hostLoad(chosen);
+        int[] skipped = null;
+        int skippedCount = 0;
+        while (chosenLoad > 0 && skippedCount < FAIR_LOOKAHEAD) {
+            final int next = scheduler.peek();
+            if (next < 0 || scheduler.getPriority(next) != priority) break;
+            scheduler.poll();
+            if (skipped == null) skipped = new int[FAIR_LOOKAHEAD];
+            final int load = hostLoad(next);
+            if (load < chosenLoad) {
+                skipped[skippedCount++] = chosen;
+                chosen = next;
+                chosenLoad = load;
+            } else {
+                skipped[skippedCount++] = next;
+            }
+        }
+        for (int i = 0; i < skippedCount; i++) scheduler.requeue(skipped[i]);
+        return chosen;
+    }
+
+    // must hold scheduler, downloading tasks on host of task
+    private int hostLoad(int taskId) {
+        final String host = taskHosts.get(taskId);
+        if (host == null) return 0;
+        int load = 0;
+        for (int i = 0; i < downloaderList.size(); i++) {
+            if (host.equals(taskHosts.get(downloaderList.keyAt(i)))) load++;
+        }
+        return load;
+    }
+
     public int getDownloadingCount() {
-        synchronized (downloaderList) {
+        synchronized (scheduler) {
             return downloaderList.size();
         }
     }
 
     public int getPendingTaskCount() {
-        synchronized (uncompletedTasks) {
-            synchronized (downloaderList) {
-                return uncompletedTasks.size() - downloaderList.size();
-            }
+        synchronized (scheduler) {
+            return scheduler.queuedCount();
         }
     }
 
@@ -143,29 +249,31 @@ public class QueueModerator
     }
 
     public boolean isDownloading(int taskId) {
-        synchronized (downloaderList) {
+        synchronized (scheduler) {
             return downloaderList.get(taskId) != null;
         }
     }
 
     public void wakeUp(int taskID) {
-        synchronized (uncompletedTasks) {
+        synchronized (scheduler) {
             uncompletedTasks.remove(taskID);
-        }
-        synchronized (downloaderList) {
             downloaderList.remove(taskID);
+            scheduler.remove(taskID);
+            taskHosts.remove(taskID);
         }
         startQueue();
         notifyListeners();
     }
 
     public void pause() {
-        synchronized (downloaderList) {
+        synchronized (scheduler) {
             for (int i = 0; i < downloaderList.size(); i++) {
                 int id = downloaderList.keyAt(i);
-                final Thread thread = downloaderList.get(id);
-                thread.interrupt();
+                // stop probing or chunk setup if it didn't finish
+                downloaderList.get(id).cancel();
                 moderator.pause(id);
+                // paused tasks wait in queue with their priority
+                scheduler.requeue(id);
             }
             downloaderList.clear();
         }
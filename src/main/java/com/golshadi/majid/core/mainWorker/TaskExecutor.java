@@ -0,0 +1,136 @@
+package com.golshadi.majid.core.mainWorker;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+/**
+ * Runs task level background work: probing and chunk setup of starting tasks,
+ * merging and clean up of finished ones.
+ * <p>
+ * By default it's a small fixed pool whose idle threads time out, so hundreds of tasks
+ * finishing together queue up instead of creating a thread each. Any {@link Executor}
+ * can be plugged in with {@link #setDelegate(Executor)}. Queue length, running jobs and
+ * queue wait times are counted in front of the delegate, for any executor.
+ */
+public class TaskExecutor implements Executor {
+
+    public static final int DEFAULT_POOL_SIZE =
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final long KEEP_ALIVE = 30; // sec
+
+    private volatile Executor delegate;
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong totalWaitMs = new AtomicLong();
+    private final AtomicLong maxWaitMs = new AtomicLong();
+
+    public TaskExecutor() {
+        this(createDefaultExecutor(DEFAULT_POOL_SIZE));
+    }
+
+    public TaskExecutor(Executor delegate) {
+        setDelegate(delegate);
+    }
+
+    public static ThreadPoolExecutor createDefaultExecutor(int poolSize) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, KEEP_ALIVE, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DownloadTask-" + threadCount.incrementAndGet());
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * jobs already queued stay on the old executor
+     */
+    public void setDelegate(Executor delegate) {
+        if (delegate == null) throw new IllegalArgumentException("Executor is null");
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void execute(final Runnable job) {
+        final long queuedAt = SystemClock.elapsedRealtime();
+        queued.incrementAndGet();
+        try {
+            delegate.execute(new Runnable() {
+                @Override
+                public void run() {
+                    queued.decrementAndGet();
+                    active.incrementAndGet();
+                    recordWait(SystemClock.elapsedRealtime() - queuedAt);
+                    try {
+                        job.run();
+                    } catch (RuntimeException e) {
+                        Timber.e(e, "Background job failed");
+                    } finally {
+                        active.decrementAndGet();
+                        completed.incrementAndGet();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            queued.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private void recordWait(long waitMs) {
+        totalWaitMs.addAndGet(waitMs);
+        long max;
+        while (waitMs > (max = maxWaitMs.get())) {
+            if (maxWaitMs.compareAndSet(max, waitMs)) break;
+        }
+    }
+
+    /**
+     * @return jobs waiting for a thread
+     */
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * @return jobs running now
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    /**
+     * @return average ms a job waited for a thread
+     */
+    public long getAverageQueueWait() {
+        final long started = completed.get() + active.get();
+        return started == 0 ? 0 : totalWaitMs.get() / started;
+    }
+
+    /**
+     * @return longest ms a job waited for a thread
+     */
+    public long getMaxQueueWait() {
+        return maxWaitMs.get();
+    }
+}
@@ -0,0 +1,227 @@
+package com.golshadi.majid.core.mainWorker;
+
+import android.util.SparseArray;
+
+/**
+ * Queued download tasks in a binary heap indexed by task id.
+ * <p>
+ * Next task is the one with highest priority, then earliest deadline, then oldest.
+ * With {@link #setSmallestFirst(boolean)} smaller tasks go before older ones of same
+ * priority and deadline (unknown size goes last), a steady stream of small tasks can then
+ * hold a large one back for good. Add, poll, remove and priority or
+ * deadline changes are O(log n), peek is O(1). A polled task keeps its entry until
+ * removed so it can be {@link #requeue(int) requeued} with the same ordering values.
+ * Not thread safe, {@link QueueModerator} guards it.
+ */
+public class TaskScheduler {
+
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private static class Entry {
+        final int taskId;
+        final long sequence;
+        int priority;
+        long deadline;
+        long size;
+        int index = -1; // position in heap, -1 when not queued
+
+        Entry(int taskId, long sequence) {
+            this.taskId = taskId;
+            this.sequence = sequence;
+        }
+    }
+
+    private final SparseArray<Entry> entries = new SparseArray<>();
+    private Entry[] heap = new Entry[16];
+    private int size = 0;
+    private long nextSequence = 0;
+    private boolean smallestFirst = false;
+
+    /**
+     * queue a task, or update and requeue it if known
+     */
+    public void add(int taskId, int priority, long deadline, long taskSize) {
+        Entry entry = entries.get(taskId);
+        if (entry == null) {
+            entry = new Entry(taskId, nextSequence++);
+            entries.put(taskId, entry);
+        }
+        entry.priority = priority;
+        entry.deadline = deadline;
+        entry.size = taskSize;
+        if (entry.index < 0) offer(entry);
+        else fix(entry.index);
+    }
+
+    /**
+     * queue a polled task again, e.g. when it's paused
+     *
+     * @return false if task is unknown
+     */
+    public boolean requeue(int taskId) {
+        final Entry entry = entries.get(taskId);
+        if (entry == null) return false;
+        if (entry.index < 0) offer(entry);
+        return true;
+    }
+
+    /**
+     * @return next task id, -1 if queue is empty
+     */
+    public int peek() {
+        return size == 0 ? -1 : heap[0].taskId;
+    }
+
+    /**
+     * take next task out of queue, its entry is kept
+     *
+     * @return task id, -1 if queue is empty
+     */
+    public int poll() {
+        if (size == 0) return -1;
+        final Entry top = heap[0];
+        removeAt(0);
+        return top.taskId;
+    }
+
+    /**
+     * forget task
+     */
+    public void remove(int taskId) {
+        final Entry entry = entries.get(taskId);
+        if (entry == null) return;
+        entries.remove(taskId);
+        if (entry.index >= 0) removeAt(entry.index);
+    }
+
+    public boolean setPriority(int taskId, int priority) {
+        final Entry entry = entries.get(taskId);
+        if (entry == null) return false;
+        entry.priority = priority;
+        if (entry.index >= 0) fix(entry.index);
+        return true;
+    }
+
+    public boolean setDeadline(int taskId, long deadline) {
+        final Entry entry = entries.get(taskId);
+        if (entry == null) return false;
+        entry.deadline = deadline;
+        if (entry.index >= 0) fix(entry.index);
+        return true;
+    }
+
+    public boolean setSize(int taskId, long taskSize) {
+        final Entry entry = entries.get(taskId);
+        if (entry == null) return false;
+        entry.size = taskSize;
+        if (entry.index >= 0) fix(entry.index);
+        return true;
+    }
+
+    /**
+     * order tasks of same priority and deadline by size instead of by age, off by default
+     */
+    public void setSmallestFirst(boolean smallestFirst) {
+        if (this.smallestFirst == smallestFirst) return;
+        this.smallestFirst = smallestFirst;
+        // every order changed, heapify
+        for (int i = (size >>> 1) - 1; i >= 0; i--) siftDown(i);
+    }
+
+    public boolean contains(int taskId) {
+        return entries.get(taskId) != null;
+    }
+
+    public boolean isQueued(int taskId) {
+        final Entry entry = entries.get(taskId);
+        return entry != null && entry.index >= 0;
+    }
+
+    public int getPriority(int taskId) {
+        final Entry entry = entries.get(taskId);
+        return entry == null ? PRIORITY_NORMAL : entry.priority;
+    }
+
+    /**
+     * @return number of queued tasks, polled ones aren't counted
+     */
+    public int queuedCount() {
+        return size;
+    }
+
+    private boolean before(Entry a, Entry b) {
+        if (a.priority != b.priority) return a.priority > b.priority;
+        if (a.deadline != b.deadline) return a.deadline < b.deadline;
+        if (smallestFirst && a.size != b.size) {
+            // unknown size last
+            if (a.size <= 0) return false;
+            if (b.size <= 0) return true;
+            return a.size < b.size;
+        }
+        return a.sequence < b.sequence;
+    }
+
+    private void offer(Entry entry) {
+        if (size == heap.length) {
+            Entry[] grown = new Entry[size * 2];
+            System.arraycopy(heap, 0, grown, 0, size);
+            heap = grown;
+        }
+        heap[size] = entry;
+        entry.index = size;
+        size++;
+        siftUp(entry.index);
+    }
+
+    private void removeAt(int index) {
+        final Entry removed = heap[index];
+        removed.index = -1;
+        size--;
+        if (index == size) {
+            heap[size] = null;
+            return;
+        }
+        heap[index] = heap[size];
+        heap[index].index = index;
+        heap[size] = null;
+        fix(index);
+    }
+
+    private void fix(int index) {
+        if (!siftUp(index)) siftDown(index);
+    }
+
+    // return true if entry moved
+    private boolean siftUp(int index) {
+        final Entry entry = heap[index];
+        int i = index;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!before(entry, heap[parent])) break;
+            heap[i] = heap[parent];
+            heap[i].index = i;
+            i = parent;
+        }
+        heap[i] = entry;
+        entry.index = i;
+        return i != index;
+    }
+
+    private void siftDown(int index) {
+        final Entry entry = heap[index];
+        int i = index;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) break;
+            if (child + 1 < size && before(heap[child + 1], heap[child])) child++;
+            if (!before(heap[child], entry)) break;
+            heap[i] = heap[child];
+            heap[i].index = i;
+            i = child;
+        }
+        heap[i] = entry;
+        entry.index = i;
+    }
+}
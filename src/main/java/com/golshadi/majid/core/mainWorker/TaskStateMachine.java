@@ -0,0 +1,107 @@
+package com.golshadi.majid.core.mainWorker;
+
+import com.golshadi.majid.core.enums.TaskStates;
+import com.golshadi.majid.database.elements.Task;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import timber.log.Timber;
+
+/**
+ * Legal moves between {@link TaskStates}, made by compare and set on task state.
+ * <p>
+ * init -> ready -> downloading <-> paused, downloading -> download finished -> end, see
+ * docs/images/states.jpg. A task not downloading yet can be paused too, and a task which
+ * hasn't ended can always move to error. No lock is taken: when moves of one task race,
+ * e.g. pause against download finished, the first one to land wins and the other finds
+ * its move illegal from the new state and backs off. Listeners hear every move, on the
+ * thread which made it.
+ */
+public class TaskStateMachine {
+
+    public interface OnStateChanged {
+        void onStateChanged(int taskId, int from, int to);
+    }
+
+    private static final AtomicIntegerFieldUpdater<Task> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Task.class, "state");
+
+    // bit of every state a state can move to
+    private static final int[] EDGES = new int[TaskStates.ERROR + 1];
+
+    static {
+        edge(TaskStates.INIT, TaskStates.READY);
+        edge(TaskStates.INIT, TaskStates.PAUSED);
+        edge(TaskStates.READY, TaskStates.DOWNLOADING);
+        edge(TaskStates.READY, TaskStates.PAUSED);
+        edge(TaskStates.DOWNLOADING, TaskStates.PAUSED);
+        edge(TaskStates.DOWNLOADING, TaskStates.DOWNLOAD_FINISHED);
+        edge(TaskStates.PAUSED, TaskStates.DOWNLOADING);
+        edge(TaskStates.DOWNLOAD_FINISHED, TaskStates.END);
+        for (int state = TaskStates.INIT; state <= TaskStates.DOWNLOAD_FINISHED; state++)
+            edge(state, TaskStates.ERROR);
+    }
+
+    private static void edge(int from, int to) {
+        EDGES[from] |= 1 << to;
+    }
+
+    private final List<OnStateChanged> listeners = new CopyOnWriteArrayList<>();
+
+    public static boolean isLegal(int from, int to) {
+        return from >= 0 && from < EDGES.length && (EDGES[from] & (1 << to)) != 0;
+    }
+
+    /**
+     * move task to state from whatever state it's in now
+     *
+     * @return state task left, -1 if move isn't legal from its current state
+     */
+    public int moveTo(Task task, int to) {
+        int from;
+        do {
+            from = task.state;
+            if (!isLegal(from, to)) {
+                Timber.d("[%d] Can't move from state %d to %d", task.id, from, to);
+                return -1;
+            }
+        } while (!STATE.compareAndSet(task, from, to));
+        notifyListeners(task.id, from, to);
+        return from;
+    }
+
+    /**
+     * move task to state only if it's in given state now
+     *
+     * @return false if task is in another state
+     */
+    public boolean move(Task task, int from, int to) {
+        if (!isLegal(from, to)) throw new IllegalArgumentException("Illegal move from state " + from + " to " + to);
+        if (!STATE.compareAndSet(task, from, to)) {
+            Timber.d("[%d] Not moved to state %d, state is %d", task.id, to, task.state);
+            return false;
+        }
+        notifyListeners(task.id, from, to);
+        return true;
+    }
+
+    public void addListener(OnStateChanged listener) {
+        if (!listeners.contains(listener)) listeners.add(listener);
+    }
+
+    public void removeListener(OnStateChanged listener) {
+        listeners.remove(listener);
+    }
+
+    private void notifyListeners(int taskId, int from, int to) {
+        for (OnStateChanged listener : listeners) {
+            try {
+                listener.onStateChanged(taskId, from, to);
+            } catch (RuntimeException e) {
+                Timber.e(e, "[%d] State listener failed", taskId);
+            }
+        }
+    }
+}
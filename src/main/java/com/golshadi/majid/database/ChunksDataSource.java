@@ -3,6 +3,8 @@ package com.golshadi.majid.database;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.SparseArray;
 
 import com.golshadi.majid.Utils.helper.SqlString;
 import com.golshadi.majid.database.constants.CHUNKS;
@@ -11,34 +13,76 @@ import com.golshadi.majid.database.elements.Chunk;
 import com.golshadi.majid.database.elements.Task;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by Majid Golshadi on 4/10/2014.
+ * <p>
+ * Chunks of a task are read from db once, then served from cache. Cached chunks are the
+ * live objects workers update, db keeps their last saved progress. Inserts and deletes
+ * change cache right away and queue their SQL on {@link DatabaseWriter}, ids of new chunks
+ * are handed out in memory so splitting a chunk never waits for db.
  */
 public class ChunksDataSource {
 
+    private static final String INSERT_CHUNK = "INSERT INTO " + TABLES.CHUNKS + " ("
+            + CHUNKS.COLUMN_ID + ", " + CHUNKS.COLUMN_TASK_ID + ", " + CHUNKS.COLUMN_BEGIN + ", " + CHUNKS.COLUMN_END + ", "
+            + CHUNKS.COLUMN_COMPLETED + ", " + CHUNKS.COLUMN_DOWNLOADED + ") VALUES (?, ?, ?, ?, ?, ?)";
+    private static final String UPDATE_PROGRESS = "UPDATE " + TABLES.CHUNKS + " SET "
+            + CHUNKS.COLUMN_DOWNLOADED + " = ? WHERE " + CHUNKS.COLUMN_ID + " = ?";
+
     private SQLiteDatabase database;
+    private DatabaseWriter writer;
+    private AtomicInteger lastChunkId;
+    // all guarded by taskChunks
+    private final SparseArray<List<Chunk>> taskChunks = new SparseArray<>();  // task id -> chunks, loaded tasks only
+    private final SparseArray<Chunk> chunks = new SparseArray<>();            // chunk id -> chunk of a loaded task
+
+    private static final Comparator<Chunk> FILE_ORDER = new Comparator<Chunk>() {
+        @Override
+        public int compare(Chunk a, Chunk b) {
+            return a.begin < b.begin ? -1 : (a.begin == b.begin ? 0 : 1);
+        }
+    };
 
     public static String getChunkFileName(int chunkId) {
         return "._" + String.valueOf(chunkId);
     }
 
-    public void openDatabase(DatabaseHelper databaseHelper) {
+    public void openDatabase(DatabaseHelper databaseHelper, DatabaseWriter writer) {
         database = databaseHelper.getWritableDatabase();
+        this.writer = writer;
+        lastChunkId = new AtomicInteger(DatabaseHelper.lastRowId(database, TABLES.CHUNKS, CHUNKS.COLUMN_ID));
     }
 
     public int insertChunks(Task task) {
-        long lastChunkInserted = 0;
+        return insertChunks(task, task.chunks);
+    }
+
+    /**
+     * slice task into {@code count} chunks of equal size, in one transaction
+     *
+     * @return first chunk id
+     */
+    public int insertChunks(Task task, int count) {
+        // ids are consecutive
+        final int firstId = lastChunkId.addAndGet(count) - count + 1;
 
         if (task.size == 0) { // not resumable
 
         } else {
 
-            long chunkSize = task.size / task.chunks;
+            long chunkSize = task.size / count;
 
-            for (int i = 0; i < task.chunks; i++) {
+            final List<Chunk> inserted = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
                 Chunk chunk = new Chunk(task.id);
+                chunk.id = firstId + i;
 
                 if (i == 0) {
                     chunk.begin = 0;
@@ -47,20 +91,141 @@ public class ChunksDataSource {
                 }
 
 
-                if (i == task.chunks - 1) {
+                if (i == count - 1) {
                     chunk.end = task.size;
                 } else {
                     chunk.end = chunkSize * (i + 1);
                 }
 
-                lastChunkInserted = database.insert(TABLES.CHUNKS, null, chunk.converterToContentValues());
+                inserted.add(chunk);
+                cacheInserted(chunk);
             }
+
+            // one commit for all rows
+            writer.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    SQLiteStatement insert = database.compileStatement(INSERT_CHUNK);
+                    database.beginTransaction();
+                    try {
+                        for (Chunk chunk : inserted) {
+                            insert.bindLong(1, chunk.id);
+                            insert.bindLong(2, chunk.task_id);
+                            insert.bindLong(3, chunk.begin);
+                            insert.bindLong(4, chunk.end);
+                            insert.bindLong(5, 0);
+                            insert.bindLong(6, 0);
+                            insert.executeInsert();
+                        }
+                        database.setTransactionSuccessful();
+                    } finally {
+                        database.endTransaction();
+                        insert.close();
+                    }
+                    return null;
+                }
+            });
         }
 
-        return (int) lastChunkInserted - task.chunks + 1;
+        return firstId;
+    }
+
+    /**
+     * save a split chunk: chunk got a new end, newChunk takes the rest of its range
+     *
+     * @return newChunk id
+     */
+    public int splitChunk(final Chunk chunk, Chunk newChunk) {
+        newChunk.id = lastChunkId.incrementAndGet();
+        cacheInserted(newChunk);
+        final int chunkId = chunk.id;
+        final ContentValues contentValues = new ContentValues();
+        contentValues.put(CHUNKS.COLUMN_END, chunk.end);
+        final ContentValues newRow = newChunk.converterToContentValues();
+        writer.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                database.beginTransaction();
+                try {
+                    database.update(TABLES.CHUNKS, contentValues, CHUNKS.COLUMN_ID + " == " + chunkId, null);
+                    database.insertOrThrow(TABLES.CHUNKS, null, newRow);
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+                return null;
+            }
+        });
+        return newChunk.id;
     }
 
+    /**
+     * @return new chunk id, also set on chunk
+     */
+    public int insertChunk(Chunk chunk) {
+        chunk.id = lastChunkId.incrementAndGet();
+        cacheInserted(chunk);
+        final ContentValues row = chunk.converterToContentValues();
+        writer.submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return database.insertOrThrow(TABLES.CHUNKS, null, row);
+            }
+        });
+        return chunk.id;
+    }
+
+    // new row of a task, chunks of a task not loaded yet are read with it later
+    private void cacheInserted(Chunk chunk) {
+        synchronized (taskChunks) {
+            final List<Chunk> cached = taskChunks.get(chunk.task_id);
+            if (cached == null) return;
+            cached.add(chunk);
+            chunks.put(chunk.id, chunk);
+        }
+    }
+
+    /**
+     * save a chunk which gave the end of its range away, e.g. to a hedge
+     */
+    public Future<Integer> truncateChunk(Chunk chunk) {
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(CHUNKS.COLUMN_END, chunk.end);
+        contentValues.put(CHUNKS.COLUMN_DOWNLOADED, chunk.downloaded);
+        contentValues.put(CHUNKS.COLUMN_COMPLETED, chunk.completed ? 1 : 0);
+        return updateRow(chunk.id, contentValues);
+    }
+
+    private Future<Integer> updateRow(final int chunkId, final ContentValues contentValues) {
+        return writer.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return database.update(TABLES.CHUNKS, contentValues, CHUNKS.COLUMN_ID + " == " + chunkId, null);
+            }
+        });
+    }
+
+    /**
+     * @return live chunks of task in file order, list is a copy
+     */
     public List<Chunk> chunksRelatedTask(int taskID) {
+        synchronized (taskChunks) {
+            List<Chunk> cached = taskChunks.get(taskID);
+            if (cached == null) {
+                // loaded under lock, so no insert or delete is missed
+                writer.flush();
+                cached = queryChunks(taskID);
+                taskChunks.put(taskID, cached);
+                for (Chunk chunk : cached) chunks.put(chunk.id, chunk);
+            }
+            // chunks may be split while downloading, ids aren't in file order anymore
+            List<Chunk> taskChunkList = new ArrayList<>(cached);
+            Collections.sort(taskChunkList, FILE_ORDER);
+            return taskChunkList;
+        }
+    }
+
+    private List<Chunk> queryChunks(int taskID) {
         List<Chunk> chunks = new ArrayList<Chunk>();
         String query = "SELECT * FROM " + TABLES.CHUNKS + " WHERE " + CHUNKS.COLUMN_TASK_ID + " == " + taskID;
         Cursor cr = database.rawQuery(query, null);
@@ -77,19 +242,95 @@ public class ChunksDataSource {
         return chunks;
     }
 
-    public boolean delete(int chunkID) {
-        int affectedRow = database.delete(TABLES.CHUNKS, CHUNKS.COLUMN_ID + "=" + SqlString.Int(chunkID), null);
-
-        if (affectedRow != 0)
-            return true;
+    /**
+     * delete every chunk row of task in one statement
+     *
+     * @return deleted rows
+     */
+    public Future<Integer> deleteChunksOfTask(final int taskId) {
+        synchronized (taskChunks) {
+            final List<Chunk> cached = taskChunks.get(taskId);
+            if (cached != null) {
+                for (Chunk chunk : cached) chunks.remove(chunk.id);
+            }
+            // ended tasks mustn't leave an entry, chunks inserted later are read with their rows
+            taskChunks.remove(taskId);
+        }
+        return writer.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return database.delete(TABLES.CHUNKS, CHUNKS.COLUMN_TASK_ID + "=" + SqlString.Int(taskId), null);
+            }
+        });
+    }
 
-        return false;
+    /**
+     * @return true when row is deleted
+     */
+    public Future<Boolean> delete(final int chunkID) {
+        synchronized (taskChunks) {
+            final Chunk chunk = chunks.get(chunkID);
+            if (chunk != null) {
+                chunks.remove(chunkID);
+                taskChunks.get(chunk.task_id).remove(chunk);
+            }
+        }
+        return writer.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return database.delete(TABLES.CHUNKS, CHUNKS.COLUMN_ID + "=" + SqlString.Int(chunkID), null) != 0;
+            }
+        });
     }
 
-    public void markChunkAsCompleted(Chunk chunk) {
+    public Future<Integer> markChunkAsCompleted(Chunk chunk) {
         ContentValues contentValues = new ContentValues();
         contentValues.put(CHUNKS.COLUMN_COMPLETED, chunk.completed ? 1 : 0);
-        database.update(TABLES.CHUNKS, contentValues, CHUNKS.COLUMN_ID + " == " + chunk.id, null);
+        contentValues.put(CHUNKS.COLUMN_DOWNLOADED, chunk.downloaded);
+        return updateRow(chunk.id, contentValues);
+    }
+
+    public Future<Integer> updateChunkProgress(Chunk chunk) {
+        return updateChunkProgress(chunk.id, chunk.downloaded);
+    }
+
+    /**
+     * a progress save of same chunk still queued just takes this value
+     */
+    public Future<Integer> updateChunkProgress(final int chunkId, long downloaded) {
+        final ContentValues contentValues = new ContentValues();
+        contentValues.put(CHUNKS.COLUMN_DOWNLOADED, downloaded);
+        return writer.update(DatabaseWriter.CHUNK_PROGRESS, chunkId, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return database.update(TABLES.CHUNKS, contentValues, CHUNKS.COLUMN_ID + " == " + chunkId, null);
+            }
+        });
+    }
+
+    /**
+     * save progress of many chunks in one transaction
+     */
+    public Future<Void> updateChunksProgress(final int[] chunkIds, final long[] downloaded) {
+        return writer.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                SQLiteStatement update = database.compileStatement(UPDATE_PROGRESS);
+                database.beginTransaction();
+                try {
+                    for (int i = 0; i < chunkIds.length; i++) {
+                        update.bindLong(1, downloaded[i]);
+                        update.bindLong(2, chunkIds[i]);
+                        update.executeUpdateDelete();
+                    }
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                    update.close();
+                }
+                return null;
+            }
+        });
     }
 
     public void close() {
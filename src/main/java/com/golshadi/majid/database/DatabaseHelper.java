@@ -1,6 +1,9 @@
 package com.golshadi.majid.database;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.os.Build;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
@@ -14,7 +17,8 @@ import com.golshadi.majid.database.constants.TASKS;
 public class DatabaseHelper extends SQLiteOpenHelper {
 
     private final static String DATABASE_NAME = "com.doitflash.air.extension.downloadManagerPro";
-    private final static int DATABASE_VERSION = 7;
+    private final static int DATABASE_VERSION = 10;
+    private final static int OLDEST_MIGRATED_VERSION = 7;  // older schemas are dropped
 
     private final String CREATE_TABLE_TASKS =
             "CREATE TABLE IF NOT EXISTS " + TABLES.TASKS + " ("
@@ -30,7 +34,12 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                     + TASKS.COLUMN_PRIORITY + " BOOLEAN, "
                     + TASKS.COLUMN_SAVE_ADDRESS + " VARCHAR( 256 ),"
                     + TASKS.COLUMN_EXTRA_JSON + " TEXT, "
-                    + TASKS.COLUMN_ERROR_MESSAGE + " TEXT "
+                    + TASKS.COLUMN_ERROR_MESSAGE + " TEXT, "
+                    + TASKS.COLUMN_STORAGE_MODE + " INT( 1 ) DEFAULT 0, "
+                    + TASKS.COLUMN_DIGEST_ALGORITHM + " INT( 1 ) DEFAULT 0, "
+                    + TASKS.COLUMN_DIGEST + " TEXT, "
+                    + TASKS.COLUMN_PIECE_SIZE + " INTEGER DEFAULT 0, "
+                    + TASKS.COLUMN_PIECE_DIGESTS + " TEXT "
                     + " ); ";
 
     private final String CREATE_TABLE_CHUNKS =
@@ -39,23 +48,89 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                     + CHUNKS.COLUMN_TASK_ID + " INTEGER, "
                     + CHUNKS.COLUMN_BEGIN + " INTEGER, "
                     + CHUNKS.COLUMN_END + " INTEGER, "
-                    + CHUNKS.COLUMN_COMPLETED + " BOOLEAN "
+                    + CHUNKS.COLUMN_COMPLETED + " BOOLEAN, "
+                    + CHUNKS.COLUMN_DOWNLOADED + " INTEGER DEFAULT 0 "
                     + " ); ";
 
+    // chunks of a task in file order, task lookups by state and by file name
+    private final String[] CREATE_INDEXES = {
+            "CREATE INDEX IF NOT EXISTS " + TABLES.CHUNKS + "_task_begin ON " + TABLES.CHUNKS
+                    + " (" + CHUNKS.COLUMN_TASK_ID + ", " + CHUNKS.COLUMN_BEGIN + ")",
+            "CREATE INDEX IF NOT EXISTS " + TABLES.TASKS + "_state ON " + TABLES.TASKS
+                    + " (" + TASKS.COLUMN_STATE + ")",
+            "CREATE INDEX IF NOT EXISTS " + TABLES.TASKS + "_name ON " + TABLES.TASKS
+                    + " (" + TASKS.COLUMN_NAME + ")"
+    };
+
     public DatabaseHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // readers don't wait for chunk progress writes
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+            setWriteAheadLoggingEnabled(true);
     }
 
+    /*
+     * step by step from old version, every step keeps rows of previous one
+     */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < OLDEST_MIGRATED_VERSION) {
+            db.execSQL("DROP TABLE IF EXISTS " + TABLES.TASKS);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLES.CHUNKS);
+            onCreate(db);
+            return;
+        }
+
+        if (oldVersion < 8) {
+            // single file storage, chunk files keep using their size as progress
+            db.execSQL("ALTER TABLE " + TABLES.TASKS + " ADD COLUMN "
+                    + TASKS.COLUMN_STORAGE_MODE + " INT( 1 ) DEFAULT 0");
+            db.execSQL("ALTER TABLE " + TABLES.CHUNKS + " ADD COLUMN "
+                    + CHUNKS.COLUMN_DOWNLOADED + " INTEGER DEFAULT 0");
+        }
+
+        if (oldVersion < 9) {
+            for (String createIndex : CREATE_INDEXES) db.execSQL(createIndex);
+        }
+
+        if (oldVersion < 10) {
+            // expected digests, tasks added before have none
+            db.execSQL("ALTER TABLE " + TABLES.TASKS + " ADD COLUMN "
+                    + TASKS.COLUMN_DIGEST_ALGORITHM + " INT( 1 ) DEFAULT 0");
+            db.execSQL("ALTER TABLE " + TABLES.TASKS + " ADD COLUMN " + TASKS.COLUMN_DIGEST + " TEXT");
+            db.execSQL("ALTER TABLE " + TABLES.TASKS + " ADD COLUMN "
+                    + TASKS.COLUMN_PIECE_SIZE + " INTEGER DEFAULT 0");
+            db.execSQL("ALTER TABLE " + TABLES.TASKS + " ADD COLUMN " + TASKS.COLUMN_PIECE_DIGESTS + " TEXT");
+        }
+    }
+
+    @Override
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // newer schema is unknown, start over
         db.execSQL("DROP TABLE IF EXISTS " + TABLES.TASKS);
         db.execSQL("DROP TABLE IF EXISTS " + TABLES.CHUNKS);
         onCreate(db);
     }
 
+    /**
+     * @return biggest id ever given to a row of table, ids are handed out from it in memory
+     */
+    static int lastRowId(SQLiteDatabase db, String table, String idColumn) {
+        long last = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + idColumn + "), 0) FROM " + table, null);
+        // autoincrement never reuses ids of deleted rows
+        Cursor cr = db.rawQuery("SELECT seq FROM sqlite_sequence WHERE name = ?", new String[]{table});
+        try {
+            if (cr.moveToFirst()) last = Math.max(last, cr.getLong(0));
+        } finally {
+            cr.close();
+        }
+        return (int) last;
+    }
+
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
         sqLiteDatabase.execSQL(CREATE_TABLE_TASKS);
         sqLiteDatabase.execSQL(CREATE_TABLE_CHUNKS);
+        for (String createIndex : CREATE_INDEXES) sqLiteDatabase.execSQL(createIndex);
     }
 }
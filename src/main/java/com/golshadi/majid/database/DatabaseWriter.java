@@ -0,0 +1,192 @@
+package com.golshadi.majid.database;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+/**
+ * One thread all db writes run on, in the order they are queued.
+ * <p>
+ * Data sources change their cache right away and queue the SQL here, so callers hold their
+ * locks for in-memory work only. A row update queued while an update of same row is still
+ * waiting replaces its values instead of adding a write, unless another write was queued in
+ * between. Data sources make their db reads wait for queued writes, so reads see them.
+ */
+public class DatabaseWriter {
+
+    public static final int TASK_ROW = 1;
+    public static final int CHUNK_PROGRESS = 2;
+
+    private static final long CLOSE_TIMEOUT = 10; // sec
+
+    private final ExecutorService executor;
+    private volatile Thread writerThread;
+    private final Map<Long, Job<?>> pending = new HashMap<>(); // queued row updates not started yet
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private class Job<T> implements Callable<T> {
+        final Long key;   // null if not coalesced
+        volatile Callable<T> write;
+        FutureTask<T> future;
+
+        Job(Long key, Callable<T> write) {
+            this.key = key;
+            this.write = write;
+        }
+
+        @Override
+        public T call() throws Exception {
+            final Callable<T> current;
+            synchronized (pending) {
+                // later updates of this row queue a new write
+                if (key != null && pending.get(key) == this) pending.remove(key);
+                current = write;
+            }
+            try {
+                return current.call();
+            } catch (Exception e) {
+                Timber.e(e, "Db write failed");
+                throw e;
+            } finally {
+                written.incrementAndGet();
+                queued.decrementAndGet();
+            }
+        }
+    }
+
+    public DatabaseWriter() {
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DownloadDbWriter");
+                writerThread = thread;
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * queue a write, later row updates aren't merged into writes queued before it
+     */
+    public <T> Future<T> submit(Callable<T> write) {
+        synchronized (pending) {
+            pending.clear();
+            return enqueue(new Job<>(null, write));
+        }
+    }
+
+    /**
+     * queue an update of one row, or give its values to an update of same row still waiting
+     *
+     * @param kind {@link #TASK_ROW} or {@link #CHUNK_PROGRESS}
+     * @param write writes values taken when it was created, not when it runs
+     * @return future of the write which saves these values
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Future<T> update(int kind, int rowId, Callable<T> write) {
+        final Long key = ((long) kind << 32) | (rowId & 0xffffffffL);
+        synchronized (pending) {
+            final Job<T> waiting = (Job<T>) pending.get(key);
+            if (waiting != null) {
+                waiting.write = write;
+                coalesced.incrementAndGet();
+                return waiting.future;
+            }
+            final Job<T> job = new Job<>(key, write);
+            pending.put(key, job);
+            return enqueue(job);
+        }
+    }
+
+    // must hold pending
+    private <T> Future<T> enqueue(Job<T> job) {
+        job.future = new FutureTask<>(job);
+        queued.incrementAndGet();
+        try {
+            executor.execute(job.future);
+        } catch (RejectedExecutionException e) {
+            // closed, db is closed too
+            queued.decrementAndGet();
+            if (job.key != null) pending.remove(job.key);
+            job.future.cancel(false);
+            Timber.w("Db write after close dropped");
+        }
+        return job.future;
+    }
+
+    /**
+     * block until every write queued before is done, returns right away on writer thread
+     */
+    public void flush() {
+        if (Thread.currentThread() == writerThread) return;
+        if (queued.get() == 0) return;
+        await(submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;
+            }
+        }), null);
+    }
+
+    /**
+     * @return result of write, fallback if it failed, was dropped or waiting was interrupted
+     */
+    public static <T> T await(Future<T> future, T fallback) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return fallback;
+        } catch (ExecutionException | CancellationException e) {
+            return fallback;
+        }
+    }
+
+    /**
+     * finish queued writes and stop writer thread, db can be closed after
+     */
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.SECONDS))
+                Timber.w("Db writes not finished in %d sec, %d left", CLOSE_TIMEOUT, queued.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return writes queued or running
+     */
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return row updates merged into a waiting one
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+}
@@ -3,6 +3,8 @@ package com.golshadi.majid.database;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.SparseArray;
 
 import com.golshadi.majid.Utils.helper.SqlString;
 import com.golshadi.majid.core.enums.QueueSort;
@@ -13,33 +15,150 @@ import com.golshadi.majid.database.elements.Task;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by Majid Golshadi on 4/10/2014.
+ * <p>
+ * Tasks read by id, inserted or updated are cached, so one task has one live object and
+ * reading it again costs no query. Every change is applied to cache right away and its SQL
+ * is queued on {@link DatabaseWriter}, ids of new rows are handed out in memory. Queries
+ * wait for queued writes, then return the cached object of a task when there is one.
+ * Ended and failed tasks never change again, they are dropped from cache when they get
+ * there and aren't cached when read, so history stays out of memory.
  */
 public class TasksDataSource {
 
+    private static final String UPDATE_STATE = "UPDATE " + TABLES.TASKS + " SET "
+            + TASKS.COLUMN_STATE + " = ? WHERE " + TASKS.COLUMN_ID + " = ?";
+
+    // equality on state index, a range or != scans the table when sorted by id
+    private static final String UNCOMPLETED_STATES = " IN (" + TaskStates.INIT + ", " + TaskStates.READY + ", "
+            + TaskStates.DOWNLOADING + ", " + TaskStates.PAUSED + ", " + TaskStates.DOWNLOAD_FINISHED + ")";
+
     private SQLiteDatabase database;
+    private DatabaseWriter writer;
+    private AtomicInteger lastTaskId;
+    private final SparseArray<Task> cache = new SparseArray<>();
 
-    public void openDatabase(DatabaseHelper dbHelper) {
+    public void openDatabase(DatabaseHelper dbHelper, DatabaseWriter writer) {
         database = dbHelper.getWritableDatabase();
+        this.writer = writer;
+        lastTaskId = new AtomicInteger(DatabaseHelper.lastRowId(database, TABLES.TASKS, TASKS.COLUMN_ID));
     }
 
-    public long insertTask(Task task) {
-        long id = database
-                .insert(TABLES.TASKS, null, task.convertToContentValues());
+    /*
+     * cached object of row, or row itself which is cached if uncompleted
+     */
+    private Task cached(Task row) {
+        synchronized (cache) {
+            final Task task = cache.get(row.id);
+            if (task != null) return task;
+            if (!isFinal(row)) cache.put(row.id, row);
+            return row;
+        }
+    }
 
-        return id;
+    /*
+     * write through, the written object is the live one from now on
+     */
+    private void cache(Task task) {
+        synchronized (cache) {
+            if (isFinal(task)) cache.remove(task.id);
+            else cache.put(task.id, task);
+        }
     }
 
-    public boolean update(Task task) {
-        int affectedRow = database
-                .update(TABLES.TASKS, task.convertToContentValues(), TASKS.COLUMN_ID + " = " + task.id, null);
+    // no state follows these
+    private static boolean isFinal(Task task) {
+        return task.state == TaskStates.END || task.state == TaskStates.ERROR;
+    }
 
-        if (affectedRow != 0)
-            return true;
+    /**
+     * @return id of task, also set on task. its row is written later
+     */
+    public long insertTask(Task task) {
+        task.id = lastTaskId.incrementAndGet();
+        cache(task);
+        final ContentValues values = task.convertToContentValues();
+        writer.submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return database.insertOrThrow(TABLES.TASKS, null, values);
+            }
+        });
+        return task.id;
+    }
 
-        return false;
+    /**
+     * insert tasks in one transaction, ids are set on tasks
+     */
+    public Future<Void> insertTasks(List<Task> tasks) {
+        final List<ContentValues> rows = new ArrayList<>(tasks.size());
+        for (Task task : tasks) {
+            task.id = lastTaskId.incrementAndGet();
+            cache(task);
+            rows.add(task.convertToContentValues());
+        }
+        return writer.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                database.beginTransaction();
+                try {
+                    for (ContentValues row : rows) database.insertOrThrow(TABLES.TASKS, null, row);
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * save state of many tasks in one transaction, tasks must be moved to it by state machine
+     * before. a task which moved on meanwhile is skipped, its own save writes the new state
+     */
+    public Future<Void> updateStates(List<Task> tasks, final int state) {
+        final List<Task> moved = new ArrayList<>(tasks);
+        return writer.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                SQLiteStatement update = database.compileStatement(UPDATE_STATE);
+                database.beginTransaction();
+                try {
+                    for (Task task : moved) {
+                        if (task.state != state) continue;
+                        update.bindLong(1, state);
+                        update.bindLong(2, task.id);
+                        update.executeUpdateDelete();
+                    }
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                    update.close();
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * save task as it is now, a save of same task still queued just takes these values
+     *
+     * @return true when row is updated
+     */
+    public Future<Boolean> update(final Task task) {
+        cache(task);
+        final ContentValues values = task.convertToContentValues();
+        return writer.update(DatabaseWriter.TASK_ROW, task.id, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return database.update(TABLES.TASKS, values, TASKS.COLUMN_ID + " = " + task.id, null) != 0;
+            }
+        });
     }
 
     public List<Task> getTasksInState(int state) {
@@ -51,6 +170,7 @@ public class TasksDataSource {
         else
             query = "SELECT * FROM " + TABLES.TASKS;
 
+        writer.flush();
         Cursor cr = database.rawQuery(query, null);
 
         if (cr != null) {
@@ -59,7 +179,7 @@ public class TasksDataSource {
             while (!cr.isAfterLast()) {
                 Task task = new Task();
                 task.cursorToTask(cr);
-                tasks.add(task);
+                tasks.add(cached(task));
 
                 cr.moveToNext();
             }
@@ -77,6 +197,7 @@ public class TasksDataSource {
         String query = "SELECT * FROM " + TABLES.TASKS + " WHERE " + TASKS.COLUMN_NOTIFY + " != " + SqlString.Int(1)
                 + " AND (" + TASKS.COLUMN_STATE + " == " + TaskStates.END + " OR "
                 + TASKS.COLUMN_STATE + " == " + TaskStates.ERROR + ")";
+        writer.flush();
         Cursor cr = database.rawQuery(query, null);
 
         if (cr != null) {
@@ -85,7 +206,7 @@ public class TasksDataSource {
             while (!cr.isAfterLast()) {
                 Task task = new Task();
                 task.cursorToTask(cr);
-                completedTasks.add(task);
+                completedTasks.add(cached(task));
 
                 cr.moveToNext();
             }
@@ -99,8 +220,7 @@ public class TasksDataSource {
     public List<Task> getUnCompletedTasks(int sortType) {
         List<Task> unCompleted = new ArrayList<Task>();
         String query = "SELECT * FROM " + TABLES.TASKS
-                + " WHERE " + TASKS.COLUMN_STATE + " != " + SqlString.Int(TaskStates.END)
-                + " AND " + TASKS.COLUMN_STATE + " != " + TaskStates.ERROR;
+                + " WHERE " + TASKS.COLUMN_STATE + UNCOMPLETED_STATES;
         switch (sortType) {
             case QueueSort.HighPriority:
                 query += " AND " + TASKS.COLUMN_PRIORITY + "=" + SqlString.Int(1);
@@ -123,6 +243,7 @@ public class TasksDataSource {
 
         }
 
+        writer.flush();
         Cursor cr = database.rawQuery(query, null);
 
         if (cr != null) {
@@ -131,7 +252,7 @@ public class TasksDataSource {
             while (!cr.isAfterLast()) {
                 Task task = new Task();
                 task.cursorToTask(cr);
-                unCompleted.add(task);
+                unCompleted.add(cached(task));
 
                 cr.moveToNext();
             }
@@ -142,14 +263,24 @@ public class TasksDataSource {
         return unCompleted;
     }
 
+    /**
+     * @return live task, an empty task if there is no such task
+     */
     public Task getTaskInfo(int id) {
+        synchronized (cache) {
+            final Task task = cache.get(id);
+            if (task != null) return task;
+        }
+
         String query = "SELECT * FROM " + TABLES.TASKS + " WHERE " + TASKS.COLUMN_ID + " == " + SqlString.Int(id);
+        writer.flush();
         Cursor cr = database.rawQuery(query, null);
 
         Task task = new Task();
         if (cr != null && cr.moveToFirst()) {
             task.cursorToTask(cr);
             cr.close();
+            task = cached(task);
         }
 
         return task;
@@ -157,31 +288,39 @@ public class TasksDataSource {
 
     public Task getTaskInfoWithName(String name) {
         String query = "SELECT * FROM " + TABLES.TASKS + " WHERE " + TASKS.COLUMN_NAME + "=" + SqlString.String(name);
+        writer.flush();
         Cursor cr = database.rawQuery(query, null);
 
         Task task = new Task();
         if (cr != null && cr.moveToFirst()) {
             task.cursorToTask(cr);
             cr.close();
+            task = cached(task);
         }
 
         return task;
     }
 
-    public boolean delete(int taskID) {
-        int affectedRow = database
-                .delete(TABLES.TASKS, TASKS.COLUMN_ID + "=" + SqlString.Int(taskID), null);
-
-        if (affectedRow != 0)
-            return true;
-
-        return false;
+    /**
+     * @return true when row is deleted
+     */
+    public Future<Boolean> delete(final int taskID) {
+        synchronized (cache) {
+            cache.remove(taskID);
+        }
+        return writer.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return database.delete(TABLES.TASKS, TASKS.COLUMN_ID + "=" + SqlString.Int(taskID), null) != 0;
+            }
+        });
     }
 
 
     public boolean containsTask(String name) {
         boolean result = false;
         String query = "SELECT * FROM " + TABLES.TASKS + " WHERE " + TASKS.COLUMN_NAME + "=" + SqlString.String(name);
+        writer.flush();
         Cursor cr = database.rawQuery(query, null);
 
         if (cr != null && cr.getCount() != 0) {
@@ -194,8 +333,8 @@ public class TasksDataSource {
 
     public boolean containUncompletedTaskWithFileName(String fileName) {
         String query = "SELECT * FROM " + TABLES.TASKS + " WHERE " + TASKS.COLUMN_NAME + " == " + SqlString.String(fileName)
-                + " AND " + TASKS.COLUMN_STATE + " != " + TaskStates.END
-                + " AND " + TASKS.COLUMN_STATE + " != " + TaskStates.ERROR;
+                + " AND " + TASKS.COLUMN_STATE + UNCOMPLETED_STATES;
+        writer.flush();
         Cursor cr = database.rawQuery(query, null);
         try {
             return cr.moveToFirst();
@@ -204,12 +343,22 @@ public class TasksDataSource {
         }
     }
 
-    public boolean checkUnNotifiedTasks() {
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(TASKS.COLUMN_NOTIFY, 1);
-        int affectedRows = database.update(TABLES.TASKS, contentValues, TASKS.COLUMN_NOTIFY + "=" + SqlString.Int(0), null);
-
-        return affectedRows > 0;
+    /**
+     * @return true when any row is updated
+     */
+    public Future<Boolean> checkUnNotifiedTasks() {
+        synchronized (cache) {
+            for (int i = 0; i < cache.size(); i++) cache.valueAt(i).notify = true;
+        }
+        return writer.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                ContentValues contentValues = new ContentValues();
+                contentValues.put(TASKS.COLUMN_NOTIFY, 1);
+                return database.update(TABLES.TASKS, contentValues,
+                        TASKS.COLUMN_NOTIFY + "=" + SqlString.Int(0), null) > 0;
+            }
+        });
     }
 
     public void close() {
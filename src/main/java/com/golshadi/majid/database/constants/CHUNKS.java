@@ -12,4 +12,5 @@ public class CHUNKS {
     public final static String COLUMN_BEGIN     = "begin";
     public final static String COLUMN_END       = "end";
     public final static String COLUMN_COMPLETED = "completed";
+    public final static String COLUMN_DOWNLOADED = "downloaded";
 }
\ No newline at end of file
@@ -20,4 +20,9 @@ public class TASKS {
     public final static String COLUMN_PRIORITY  = "priority";
     public final static String COLUMN_EXTRA_JSON = "extra_json";
     public final static String COLUMN_ERROR_MESSAGE = "error_message";
+    public final static String COLUMN_STORAGE_MODE = "storage_mode";
+    public final static String COLUMN_DIGEST_ALGORITHM = "digest_algorithm";
+    public final static String COLUMN_DIGEST = "digest";
+    public final static String COLUMN_PIECE_SIZE = "piece_size";
+    public final static String COLUMN_PIECE_DIGESTS = "piece_digests";
 }
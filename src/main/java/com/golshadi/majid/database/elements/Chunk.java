@@ -23,6 +23,7 @@ public class Chunk {
     public long begin;
     public long end;
     public boolean completed;
+    public long downloaded;    // bytes written from begin
 
     public Chunk(int task_id) {
         this.task_id = task_id;
@@ -37,6 +38,7 @@ public class Chunk {
         contentValues.put(CHUNKS.COLUMN_BEGIN, begin);
         contentValues.put(CHUNKS.COLUMN_END, end);
         contentValues.put(CHUNKS.COLUMN_COMPLETED, completed);
+        contentValues.put(CHUNKS.COLUMN_DOWNLOADED, downloaded);
 
         return contentValues;
     }
@@ -46,12 +48,14 @@ public class Chunk {
                 cr.getColumnIndex(CHUNKS.COLUMN_ID));
         task_id = cr.getInt(
                 cr.getColumnIndex(CHUNKS.COLUMN_TASK_ID));
-        begin = cr.getInt(
+        begin = cr.getLong(
                 cr.getColumnIndex(CHUNKS.COLUMN_BEGIN));
-        end = cr.getInt(
+        end = cr.getLong(
                 cr.getColumnIndex(CHUNKS.COLUMN_END));
         completed = cr.getInt(
                 cr.getColumnIndex(CHUNKS.COLUMN_COMPLETED)) > 0;
+        downloaded = cr.getLong(
+                cr.getColumnIndex(CHUNKS.COLUMN_DOWNLOADED));
 
     }
 }
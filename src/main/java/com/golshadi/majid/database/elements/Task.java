@@ -6,6 +6,8 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.support.annotation.Nullable;
 
+import com.golshadi.majid.core.enums.DigestAlgorithm;
+import com.golshadi.majid.core.enums.StorageMode;
 import com.golshadi.majid.database.constants.TASKS;
 
 /**
@@ -29,7 +31,7 @@ public class Task implements Parcelable {
     public int id;
     public String name;
     public long size;
-    public int state;
+    public volatile int state;  // changed by TaskStateMachine
     public String url;
     public int percent;
     public int chunks;
@@ -39,6 +41,11 @@ public class Task implements Parcelable {
     public boolean priority;
     public @Nullable String jsonExtra;
     public @Nullable String errorMessage;
+    public int storageMode;
+    public int digestAlgorithm;              // DigestAlgorithm, of digest and piece digests
+    public @Nullable String digest;          // hex digest of whole file
+    public long pieceSize;
+    public @Nullable String pieceDigests;    // hex digests of pieces, comma separated
 
     public Task() {
         this.id = 0;
@@ -53,6 +60,8 @@ public class Task implements Parcelable {
         this.save_address = null;
         this.priority = false;  // low priority
         this.jsonExtra = null;
+        this.storageMode = StorageMode.CHUNK_FILES;
+        this.digestAlgorithm = DigestAlgorithm.NONE;
     }
 
     public Task(long size, String name, String url,
@@ -70,6 +79,8 @@ public class Task implements Parcelable {
         this.save_address = sdCardFolderAddress;
         this.priority = priority;
         this.jsonExtra = jsonExtra;
+        this.storageMode = StorageMode.CHUNK_FILES;
+        this.digestAlgorithm = DigestAlgorithm.NONE;
     }
 
     protected Task(Parcel in) {
@@ -86,6 +97,11 @@ public class Task implements Parcelable {
         priority = in.readByte() != 0x00;
         jsonExtra = (String) in.readValue(String.class.getClassLoader());
         errorMessage = (String) in.readValue(String.class.getClassLoader());
+        storageMode = in.readInt();
+        digestAlgorithm = in.readInt();
+        digest = (String) in.readValue(String.class.getClassLoader());
+        pieceSize = in.readLong();
+        pieceDigests = (String) in.readValue(String.class.getClassLoader());
     }
 
     @Override
@@ -108,6 +124,11 @@ public class Task implements Parcelable {
         dest.writeByte((byte) (priority ? 0x01 : 0x00));
         dest.writeValue(jsonExtra);
         dest.writeValue(errorMessage);
+        dest.writeInt(storageMode);
+        dest.writeInt(digestAlgorithm);
+        dest.writeValue(digest);
+        dest.writeLong(pieceSize);
+        dest.writeValue(pieceDigests);
     }
 
     @SuppressWarnings("unused")
@@ -146,6 +167,11 @@ public class Task implements Parcelable {
         contentValues.put(TASKS.COLUMN_PRIORITY, priority);
         contentValues.put(TASKS.COLUMN_EXTRA_JSON, jsonExtra);
         contentValues.put(TASKS.COLUMN_ERROR_MESSAGE, errorMessage);
+        contentValues.put(TASKS.COLUMN_STORAGE_MODE, storageMode);
+        contentValues.put(TASKS.COLUMN_DIGEST_ALGORITHM, digestAlgorithm);
+        contentValues.put(TASKS.COLUMN_DIGEST, digest);
+        contentValues.put(TASKS.COLUMN_PIECE_SIZE, pieceSize);
+        contentValues.put(TASKS.COLUMN_PIECE_DIGESTS, pieceDigests);
         return contentValues;
     }
 
@@ -176,5 +202,15 @@ public class Task implements Parcelable {
                 cr.getColumnIndex(TASKS.COLUMN_EXTRA_JSON));
         errorMessage = cr.getString(
                 cr.getColumnIndex(TASKS.COLUMN_ERROR_MESSAGE));
+        storageMode = cr.getInt(
+                cr.getColumnIndex(TASKS.COLUMN_STORAGE_MODE));
+        digestAlgorithm = cr.getInt(
+                cr.getColumnIndex(TASKS.COLUMN_DIGEST_ALGORITHM));
+        digest = cr.getString(
+                cr.getColumnIndex(TASKS.COLUMN_DIGEST));
+        pieceSize = cr.getLong(
+                cr.getColumnIndex(TASKS.COLUMN_PIECE_SIZE));
+        pieceDigests = cr.getString(
+                cr.getColumnIndex(TASKS.COLUMN_PIECE_DIGESTS));
     }
 }
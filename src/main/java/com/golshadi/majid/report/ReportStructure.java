@@ -1,16 +1,23 @@
 package com.golshadi.majid.report;
 
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.support.annotation.RestrictTo;
+import android.util.SparseArray;
 
 import com.golshadi.majid.Utils.helper.FileUtils;
+import com.golshadi.majid.Utils.helper.StripedCounter;
+import com.golshadi.majid.core.enums.StorageMode;
 import com.golshadi.majid.core.enums.TaskStates;
 import com.golshadi.majid.database.ChunksDataSource;
 import com.golshadi.majid.database.elements.Chunk;
 import com.golshadi.majid.database.elements.Task;
 
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
 
 import timber.log.Timber;
 
@@ -30,28 +37,222 @@ public class ReportStructure {
     public long fileSize;
     public boolean resumable;
     public int chunks;
-    public double percent;
-    public long downloadedLength;
+    public volatile double percent;          // snapshot, see getDownloadedLength()
+    public volatile long downloadedLength;   // snapshot, see getDownloadedLength()
     public String folder;
     public boolean priority;
     public @Nullable String jsonExtra;
     public @Nullable String errorMessage;
-    private WeakReference<OnChanged> onChangedWeakReference;
-    private int threshold = 0;
-    private long lastDownloadedLength = 0;
+    private volatile WeakReference<OnChanged> onChangedWeakReference;
+    private volatile int threshold = 0;
+    private final StripedCounter downloaded = new StripedCounter();
+    private long lastChangedLength = 0;
+
+    private static final AtomicIntegerFieldUpdater<ReportStructure> DIRTY =
+            AtomicIntegerFieldUpdater.newUpdater(ReportStructure.class, "dirty");
+    private volatile int dirty = 0; // progress not published yet
+
+    private volatile ThroughputMeter meter = new ThroughputMeter();
+    private final SparseArray<ThroughputMeter> chunkMeters = new SparseArray<>();
+    private volatile boolean receiving = false; // got first byte since startMeters()
+
+    private final AtomicLong hedgedBytes = new AtomicLong();
+    private final AtomicLong hedgeWastedBytes = new AtomicLong();
+    private final AtomicLong mergedBytes = new AtomicLong();
+    private final AtomicLong mergeTime = new AtomicLong(); // ms
 
     public ReportStructure() {
     }
 
-    public long increaseDownloadedLength(long n) {
-        this.downloadedLength += n;
-        this.percent = this.fileSize > 0 ? downloadedLength * 100 / fileSize : 0;
+    /**
+     * called by chunk workers on every read, takes no lock and allocates nothing
+     */
+    public void increaseDownloadedLength(long n) {
+        downloaded.add(n);
+
+        if (!receiving) {
+            receiving = true;
+            meter.record(downloaded.sum(), SystemClock.elapsedRealtime());
+        }
+    }
+
+    /**
+     * restart speed and time to first byte measurement, called when task starts
+     */
+    @RestrictTo(RestrictTo.Scope.LIBRARY_GROUP)
+    public void startMeters() {
+        final ThroughputMeter newMeter = new ThroughputMeter();
+        newMeter.begin(downloaded.sum(), SystemClock.elapsedRealtime());
+        synchronized (chunkMeters) {
+            chunkMeters.clear();
+        }
+        meter = newMeter;
+        receiving = false;
+        hedgedBytes.set(0);
+        hedgeWastedBytes.set(0);
+    }
+
+    @RestrictTo(RestrictTo.Scope.LIBRARY_GROUP)
+    public ThroughputMeter getChunkMeter(int chunkId) {
+        synchronized (chunkMeters) {
+            ThroughputMeter chunkMeter = chunkMeters.get(chunkId);
+            if (chunkMeter == null) {
+                chunkMeter = new ThroughputMeter();
+                chunkMeters.put(chunkId, chunkMeter);
+            }
+            return chunkMeter;
+        }
+    }
+
+    private @Nullable ThroughputMeter findChunkMeter(int chunkId) {
+        synchronized (chunkMeters) {
+            return chunkMeters.get(chunkId);
+        }
+    }
+
+    /**
+     * @return bytes per sec, exponentially weighted so it doesn't jump on every sample
+     */
+    public long getSpeed() {
+        return meter.getSmoothedSpeed(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * @return bytes per sec averaged over last {@link ThroughputMeter#WINDOW} ms
+     */
+    public long getWindowSpeed() {
+        return meter.getWindowSpeed(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * @return bytes per sec of a chunk, 0 if it isn't running
+     */
+    public long getChunkSpeed(int chunkId) {
+        final ThroughputMeter chunkMeter = findChunkMeter(chunkId);
+        return chunkMeter == null ? 0 : chunkMeter.getSmoothedSpeed(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * median of chunk speeds of current run, average speed for finished chunks
+     */
+    @RestrictTo(RestrictTo.Scope.LIBRARY_GROUP)
+    public long getMedianChunkSpeed() {
+        final long[] speeds;
+        synchronized (chunkMeters) {
+            speeds = new long[chunkMeters.size()];
+            for (int i = 0; i < speeds.length; i++) {
+                speeds[i] = chunkMeters.valueAt(i).getAverageSpeed();
+            }
+        }
+        if (speeds.length == 0) return 0;
+        Arrays.sort(speeds);
+        return speeds[speeds.length / 2];
+    }
+
+    @RestrictTo(RestrictTo.Scope.LIBRARY_GROUP)
+    public void addHedgedBytes(long n) {
+        hedgedBytes.addAndGet(n);
+    }
+
+    @RestrictTo(RestrictTo.Scope.LIBRARY_GROUP)
+    public void addHedgeWastedBytes(long n) {
+        hedgeWastedBytes.addAndGet(n);
+    }
+
+    /**
+     * @return size of ranges downloaded twice to hedge slow chunks, since task started
+     */
+    public long getHedgedBytes() {
+        return hedgedBytes.get();
+    }
+
+    /**
+     * @return bytes downloaded by cancelled copies of hedged ranges, since task started
+     */
+    public long getHedgeWastedBytes() {
+        return hedgeWastedBytes.get();
+    }
+
+    @RestrictTo(RestrictTo.Scope.LIBRARY_GROUP)
+    public void addMerged(long bytes, long ms) {
+        mergedBytes.addAndGet(bytes);
+        mergeTime.addAndGet(ms);
+    }
+
+    /**
+     * @return bytes copied from chunk files into output file in this session,
+     * a chunk file which became the output isn't copied
+     */
+    public long getMergedBytes() {
+        return mergedBytes.get();
+    }
+
+    /**
+     * @return bytes per sec of merging chunk files, 0 if nothing was copied yet
+     */
+    public long getMergeSpeed() {
+        final long bytes = mergedBytes.get();
+        return bytes == 0 ? 0 : bytes * 1000 / Math.max(1, mergeTime.get());
+    }
+
+    /**
+     * @return estimated ms to finish at current speed, -1 if unknown
+     */
+    public long getEta() {
+        final long speed = getSpeed();
+        if (fileSize <= 0 || speed <= 0) return -1;
+        final long remaining = Math.max(0, fileSize - downloaded.sum());
+        return remaining * 1000 / speed;
+    }
 
-        if (downloadedLength - lastDownloadedLength > threshold) {
-            lastDownloadedLength = downloadedLength;
+    /**
+     * @return ms from task start to its first byte, -1 if no byte yet
+     */
+    public long getTimeToFirstByte() {
+        return meter.getTimeToFirstByte();
+    }
+
+    /**
+     * @return ms from latest request of a chunk to its first byte, -1 if no byte yet
+     */
+    public long getChunkTimeToFirstByte(int chunkId) {
+        final ThroughputMeter chunkMeter = findChunkMeter(chunkId);
+        return chunkMeter == null ? -1 : chunkMeter.getTimeToFirstByte();
+    }
+
+    /**
+     * @return true only for the first call since last {@link #clearDirty()}
+     */
+    @RestrictTo(RestrictTo.Scope.LIBRARY_GROUP)
+    public boolean markDirty() {
+        return dirty == 0 && DIRTY.compareAndSet(this, 0, 1);
+    }
+
+    @RestrictTo(RestrictTo.Scope.LIBRARY_GROUP)
+    public void clearDirty() {
+        dirty = 0;
+    }
+
+    /**
+     * called by progress dispatcher with a fresh length, notify listener when it passed threshold
+     */
+    @RestrictTo(RestrictTo.Scope.LIBRARY_GROUP)
+    public void onProgress(long length) {
+        if (onChangedWeakReference != null && length - lastChangedLength > threshold) {
+            lastChangedLength = length;
             onChanged();
         }
-        return downloadedLength;
+    }
+
+    /**
+     * sum bytes of all workers and refresh {@link #downloadedLength} and {@link #percent}
+     */
+    public long getDownloadedLength() {
+        final long length = downloaded.sum();
+        meter.record(length, SystemClock.elapsedRealtime());
+        this.downloadedLength = length;
+        this.percent = fileSize > 0 ? ((float) length / fileSize * 100) : 0;
+        return length;
     }
 
     public synchronized void setOnChangedListener(OnChanged onChanged, int threshold) {
@@ -82,8 +283,9 @@ public class ReportStructure {
         this.errorMessage = task.errorMessage;
 
         calculatePercent(task, taskChunks);
+        downloaded.set(downloadedLength);
+        lastChangedLength = downloadedLength;
 
-        lastDownloadedLength = downloadedLength;
         onChanged();
 
         return this;
@@ -103,8 +305,16 @@ public class ReportStructure {
 
         // if download not completed we have chunks
         if (task.state != TaskStates.DOWNLOAD_FINISHED) {
+            // merged chunks are gone, output holds everything before first one left
+            long merged = chunks.isEmpty() ? 0 : Long.MAX_VALUE;
+            for (Chunk chunk : chunks) merged = Math.min(merged, chunk.begin);
+            if (task.storageMode == StorageMode.CHUNK_FILES) this.downloadedLength = merged;
+
             for (Chunk chunk : chunks) {
-                this.downloadedLength += FileUtils.size(task.save_address, ChunksDataSource.getChunkFileName(chunk.id));
+                if (task.storageMode == StorageMode.SINGLE_FILE)
+                    this.downloadedLength += chunk.downloaded;
+                else
+                    this.downloadedLength += FileUtils.size(task.save_address, ChunksDataSource.getChunkFileName(chunk.id));
             }
 
             if (task.size > 0) {
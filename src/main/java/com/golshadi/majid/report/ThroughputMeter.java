@@ -0,0 +1,124 @@
+package com.golshadi.majid.report;
+
+/**
+ * Download speed of a task or a chunk from (time, total bytes) samples.
+ * <p>
+ * Keeps samples of the last {@link #WINDOW} ms for a sliding window average, and an
+ * exponentially weighted average which reacts slower but doesn't jump when a sample
+ * leaves the window. Samples closer than {@link #SAMPLE_INTERVAL} are merged, so
+ * recording often costs little. Both speeds decay to zero when no sample comes in,
+ * a stalled download doesn't keep its last speed. Times are in ms from any monotonic
+ * clock, usually {@code SystemClock.elapsedRealtime()}.
+ */
+public class ThroughputMeter {
+
+    public static final long WINDOW = 5000;          // ms
+    public static final long SAMPLE_INTERVAL = 100;  // ms
+    private static final double EWMA_TIME_CONSTANT = 2000; // ms
+    private static final int SAMPLES = (int) (WINDOW / SAMPLE_INTERVAL) + 2;
+
+    // ring of samples, oldest at head
+    private final long[] sampleTimes = new long[SAMPLES];
+    private final long[] sampleBytes = new long[SAMPLES];
+    private int head = 0;
+    private int count = 0;
+
+    private long lastTime;
+    private long lastBytes;
+    private double ewma = 0; // bytes per sec
+
+    private long startTime = -1;
+    private long startBytes;
+    private long firstByteTime = -1;
+
+    /**
+     * start measuring from {@code bytes}, time to first byte is counted from now.
+     * history is kept unless bytes went back, e.g. a chunk which starts over
+     */
+    public synchronized void begin(long bytes, long now) {
+        if (startTime < 0 || bytes < lastBytes) {
+            head = 0;
+            count = 0;
+            ewma = 0;
+            lastTime = now;
+            lastBytes = bytes;
+            push(now, bytes);
+        }
+        startTime = now;
+        startBytes = bytes;
+        firstByteTime = -1;
+    }
+
+    public synchronized void record(long bytes, long now) {
+        if (startTime < 0) begin(bytes, now);
+        if (firstByteTime < 0 && bytes > startBytes) firstByteTime = now;
+
+        final long elapsed = now - lastTime;
+        if (elapsed < SAMPLE_INTERVAL) return;
+
+        final double rate = Math.max(0, bytes - lastBytes) * 1000d / elapsed;
+        ewma += (1 - Math.exp(-elapsed / EWMA_TIME_CONSTANT)) * (rate - ewma);
+        lastTime = now;
+        lastBytes = bytes;
+        push(now, bytes);
+    }
+
+    private void push(long time, long bytes) {
+        if (count == SAMPLES) {
+            head = (head + 1) % SAMPLES;
+            count--;
+        }
+        final int i = (head + count) % SAMPLES;
+        sampleTimes[i] = time;
+        sampleBytes[i] = bytes;
+        count++;
+    }
+
+    /**
+     * average bytes per sec over last {@link #WINDOW} ms
+     */
+    public synchronized long getWindowSpeed(long now) {
+        if (count == 0) return 0;
+        // drop samples out of window, keep one as base
+        while (count > 1 && sampleTimes[(head + 1) % SAMPLES] <= now - WINDOW) {
+            head = (head + 1) % SAMPLES;
+            count--;
+        }
+        final long elapsed = now - sampleTimes[head];
+        if (elapsed <= 0) return 0;
+        return (long) (Math.max(0, lastBytes - sampleBytes[head]) * 1000d / elapsed);
+    }
+
+    /**
+     * exponentially weighted bytes per sec, decayed for time since last sample
+     */
+    public synchronized long getSmoothedSpeed(long now) {
+        final long idle = now - lastTime;
+        if (idle <= SAMPLE_INTERVAL) return (long) ewma;
+        return (long) (ewma * Math.exp(-idle / EWMA_TIME_CONSTANT));
+    }
+
+    /**
+     * bytes per sec from {@link #begin(long, long)} to last sample, doesn't decay
+     */
+    public synchronized long getAverageSpeed() {
+        final long elapsed = lastTime - startTime;
+        if (startTime < 0 || elapsed <= 0) return 0;
+        return (long) (Math.max(0, lastBytes - startBytes) * 1000d / elapsed);
+    }
+
+    /**
+     * @return time of last {@link #begin(long, long)}, -1 if not begun
+     */
+    public synchronized long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return ms from {@link #begin(long, long)} to first byte, -1 if no byte yet
+     */
+    public synchronized long getTimeToFirstByte() {
+        if (startTime < 0 || firstByteTime < 0) return -1;
+        return firstByteTime - startTime;
+    }
+}
@@ -6,9 +6,11 @@ import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.golshadi.majid.DownloadManagerService;
+import com.golshadi.majid.Utils.helper.StripedCounter;
 import com.golshadi.majid.core.DownloadManagerPro;
 import com.golshadi.majid.database.TasksDataSource;
 import com.golshadi.majid.database.elements.Task;
+import com.golshadi.majid.report.ReportStructure;
 
 import java.lang.ref.WeakReference;
 import java.util.concurrent.TimeUnit;
@@ -21,7 +23,7 @@ import io.reactivex.schedulers.Schedulers;
 /**
  * Created by Majid Golshadi on 4/21/2014.
  */
-public class DownloadManagerListenerModerator implements Consumer<Long> {
+public class DownloadManagerListenerModerator implements Consumer<Long>, ProgressDispatcher.Publisher {
 
     public static final String TAG = "DownloadListener";
     public static final int TIMER_INTERVAL = 1000;
@@ -30,14 +32,26 @@ public class DownloadManagerListenerModerator implements Consumer<Long> {
     private WeakReference<DownloadManagerListener> downloadManagerListenerWeakReference;
     private WeakReference<DownloadSpeedListener> downloadSpeedListener;
     private Disposable disposable;
-    private long accumulateByteDownloaded;
+    private final StripedCounter accumulateByteDownloaded = new StripedCounter();
     private long speed;
+    private final ProgressDispatcher dispatcher;
 
     public DownloadManagerListenerModerator(Context context, TasksDataSource tasksDataSource) {
         this.context = context;
         this.tasksDataSource = tasksDataSource;
-        this.accumulateByteDownloaded = 0;
         this.speed = 0;
+        this.dispatcher = new ProgressDispatcher(this);
+    }
+
+    public void setProgressInterval(long intervalMs) {
+        dispatcher.setInterval(intervalMs);
+    }
+
+    /**
+     * stop callback thread once events already posted are delivered
+     */
+    public void shutdown() {
+        dispatcher.shutdown();
     }
 
     public DownloadManagerListenerModerator setDownloadManagerListener(DownloadManagerListener downloadManagerListener) {
@@ -48,7 +62,7 @@ public class DownloadManagerListenerModerator implements Consumer<Long> {
     public void setDownloadSpeedListener(@Nullable DownloadSpeedListener listener) {
         if (listener != null) {
             this.downloadSpeedListener = new WeakReference<>(listener);
-            this.accumulateByteDownloaded = 0;
+            this.accumulateByteDownloaded.sumThenReset();
             synchronized (context) {
                 if (disposable != null && !disposable.isDisposed()) {
                     disposable.dispose();
@@ -62,27 +76,53 @@ public class DownloadManagerListenerModerator implements Consumer<Long> {
         }
     }
 
-    public void OnDownloadStarted(long taskId) {
-        Log.d(TAG, "OnDownloadStarted() called with: taskId = [" + taskId + "]");
-        DownloadManagerListener downloadManagerListener = null;
-        if (downloadManagerListenerWeakReference != null)
-            downloadManagerListener = downloadManagerListenerWeakReference.get();
-        if (downloadManagerListener != null) {
-            downloadManagerListener.OnDownloadStarted(taskId);
-        }
+    public void OnDownloadStarted(final long taskId) {
+        dispatcher.execute(() -> {
+            Log.d(TAG, "OnDownloadStarted() called with: taskId = [" + taskId + "]");
+            DownloadManagerListener downloadManagerListener = null;
+            if (downloadManagerListenerWeakReference != null)
+                downloadManagerListener = downloadManagerListenerWeakReference.get();
+            if (downloadManagerListener != null) {
+                downloadManagerListener.OnDownloadStarted(taskId);
+            }
+        });
     }
 
-    public void OnDownloadPaused(long taskId) {
-        Log.d(TAG, "OnDownloadPaused() called with: taskId = [" + taskId + "]");
-        DownloadManagerListener downloadManagerListener = null;
-        if (downloadManagerListenerWeakReference != null)
-            downloadManagerListener = downloadManagerListenerWeakReference.get();
-        if (downloadManagerListener != null) {
-            downloadManagerListener.OnDownloadPaused(taskId);
+    public void OnDownloadPaused(final long taskId) {
+        dispatcher.execute(() -> {
+            Log.d(TAG, "OnDownloadPaused() called with: taskId = [" + taskId + "]");
+            DownloadManagerListener downloadManagerListener = null;
+            if (downloadManagerListenerWeakReference != null)
+                downloadManagerListener = downloadManagerListenerWeakReference.get();
+            if (downloadManagerListener != null) {
+                downloadManagerListener.OnDownloadPaused(taskId);
+            }
+        });
+    }
+
+    /**
+     * called by workers on every read, progress is published later on callback thread
+     */
+    public void onDownloadProcess(ReportStructure rs) {
+        dispatcher.progress(rs);
+    }
+
+    public void onReportChanged(final ReportStructure rs) {
+        dispatcher.execute(rs::onChanged);
+    }
+
+    @Override
+    public void publish(ReportStructure rs) {
+        double percent = -1;
+        long downloadLength = rs.getDownloadedLength();
+        if (rs.isResumable()) {
+            percent = ((float) downloadLength / rs.getTotalSize() * 100);
         }
+        onDownloadProcess(rs.id, percent, downloadLength);
+        rs.onProgress(downloadLength);
     }
 
-    public void onDownloadProcess(long taskId, double percent, long downloadedLength) {
+    private void onDownloadProcess(long taskId, double percent, long downloadedLength) {
 //        Log.d(TAG, "onDownloadProcess() called with: taskId = [" + taskId + "], percent = [" + percent + "], downloadedLength = [" + downloadedLength + "]");
         DownloadManagerListener downloadManagerListener = null;
         if (downloadManagerListenerWeakReference != null)
@@ -92,72 +132,81 @@ public class DownloadManagerListenerModerator implements Consumer<Long> {
         }
     }
 
-    public void OnDownloadFinished(long taskId) {
-        Log.d(TAG, "OnDownloadFinished() called with: taskId = [" + taskId + "]");
-        DownloadManagerListener downloadManagerListener = null;
-        if (downloadManagerListenerWeakReference != null)
-            downloadManagerListener = downloadManagerListenerWeakReference.get();
-        if (downloadManagerListener != null) {
-            downloadManagerListener.OnDownloadFinished(taskId);
-        }
+    public void OnDownloadFinished(final long taskId) {
+        dispatcher.execute(() -> {
+            Log.d(TAG, "OnDownloadFinished() called with: taskId = [" + taskId + "]");
+            DownloadManagerListener downloadManagerListener = null;
+            if (downloadManagerListenerWeakReference != null)
+                downloadManagerListener = downloadManagerListenerWeakReference.get();
+            if (downloadManagerListener != null) {
+                downloadManagerListener.OnDownloadFinished(taskId);
+            }
+        });
     }
 
-    public void OnDownloadRebuildStart(long taskId) {
-        Log.d(TAG, "OnDownloadRebuildStart() called with: taskId = [" + taskId + "]");
-        DownloadManagerListener downloadManagerListener = null;
-        if (downloadManagerListenerWeakReference != null)
-            downloadManagerListener = downloadManagerListenerWeakReference.get();
-        if (downloadManagerListener != null) {
-            downloadManagerListener.OnDownloadRebuildStart(taskId);
-        }
+    public void OnDownloadRebuildStart(final long taskId) {
+        dispatcher.execute(() -> {
+            Log.d(TAG, "OnDownloadRebuildStart() called with: taskId = [" + taskId + "]");
+            DownloadManagerListener downloadManagerListener = null;
+            if (downloadManagerListenerWeakReference != null)
+                downloadManagerListener = downloadManagerListenerWeakReference.get();
+            if (downloadManagerListener != null) {
+                downloadManagerListener.OnDownloadRebuildStart(taskId);
+            }
+        });
     }
 
 
-    public void OnDownloadRebuildFinished(long taskId) {
-        Log.d(TAG, "OnDownloadRebuildFinished() called with: taskId = [" + taskId + "]");
-        DownloadManagerListener downloadManagerListener = null;
-        if (downloadManagerListenerWeakReference != null)
-            downloadManagerListener = downloadManagerListenerWeakReference.get();
-        if (downloadManagerListener != null) {
-            downloadManagerListener.OnDownloadRebuildFinished(taskId);
-        }
+    public void OnDownloadRebuildFinished(final long taskId) {
+        dispatcher.execute(() -> {
+            Log.d(TAG, "OnDownloadRebuildFinished() called with: taskId = [" + taskId + "]");
+            DownloadManagerListener downloadManagerListener = null;
+            if (downloadManagerListenerWeakReference != null)
+                downloadManagerListener = downloadManagerListenerWeakReference.get();
+            if (downloadManagerListener != null) {
+                downloadManagerListener.OnDownloadRebuildFinished(taskId);
+            }
+        });
     }
 
-    public void OnDownloadCompleted(long taskId) {
-        Log.d(TAG, "OnDownloadCompleted() called with: taskId = [" + taskId + "]");
-        DownloadManagerListener downloadManagerListener = null;
-        if (downloadManagerListenerWeakReference != null)
-            downloadManagerListener = downloadManagerListenerWeakReference.get();
-        if (downloadManagerListener != null) {
-            downloadManagerListener.OnDownloadCompleted(taskId);
-        }
+    public void OnDownloadCompleted(final long taskId) {
+        dispatcher.execute(() -> {
+            Log.d(TAG, "OnDownloadCompleted() called with: taskId = [" + taskId + "]");
+            DownloadManagerListener downloadManagerListener = null;
+            if (downloadManagerListenerWeakReference != null)
+                downloadManagerListener = downloadManagerListenerWeakReference.get();
+            if (downloadManagerListener != null) {
+                downloadManagerListener.OnDownloadCompleted(taskId);
+            }
 
-        Task task = tasksDataSource.getTaskInfo(Long.valueOf(taskId).intValue());
-        Intent intent = new Intent(DownloadManagerPro.ACTION_DOWNLOAD_COMPLETED);
-        intent.putExtra(DownloadManagerService.TASK_DATA, task);
+            Task task = tasksDataSource.getTaskInfo(Long.valueOf(taskId).intValue());
+            Intent intent = new Intent(DownloadManagerPro.ACTION_DOWNLOAD_COMPLETED);
+            intent.putExtra(DownloadManagerService.TASK_DATA, task);
 
-        context.sendBroadcast(intent);
+            context.sendBroadcast(intent);
+        });
     }
 
-    public void onDownloadError(long taskId, String errorMessage) {
-        Log.d(TAG, "onDownloadError() called with: taskId = [" + taskId + "], errorMessage = [" + errorMessage + "]");
-        DownloadManagerListener downloadManagerListener = null;
-        if (downloadManagerListenerWeakReference != null)
-            downloadManagerListener = downloadManagerListenerWeakReference.get();
-        if (downloadManagerListener != null) {
-            downloadManagerListener.onDownloadError(taskId, errorMessage);
-        }
+    public void onDownloadError(final long taskId, final String errorMessage) {
+        dispatcher.execute(() -> {
+            Log.d(TAG, "onDownloadError() called with: taskId = [" + taskId + "], errorMessage = [" + errorMessage + "]");
+            DownloadManagerListener downloadManagerListener = null;
+            if (downloadManagerListenerWeakReference != null)
+                downloadManagerListener = downloadManagerListenerWeakReference.get();
+            if (downloadManagerListener != null) {
+                downloadManagerListener.onDownloadError(taskId, errorMessage);
+            }
+        });
     }
 
 
     public void countBytesDownloaded(long bytes) {
-        this.accumulateByteDownloaded += bytes;
+        accumulateByteDownloaded.add(bytes);
     }
 
     @Override
     public void accept(Long aLong) throws Exception {
-        long tmp = accumulateByteDownloaded * 1000 / TIMER_INTERVAL;
-        accumulateByteDownloaded = 0;
+        long tmp = accumulateByteDownloaded.sumThenReset() * 1000 / TIMER_INTERVAL;
         synchronized (context) {
             final DownloadSpeedListener listener = downloadSpeedListener == null ? null : downloadSpeedListener.get();
             if (listener == null) {
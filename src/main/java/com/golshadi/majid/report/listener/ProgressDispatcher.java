@@ -0,0 +1,128 @@
+package com.golshadi.majid.report.listener;
+
+import com.golshadi.majid.report.ReportStructure;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import timber.log.Timber;
+
+/**
+ * Runs listener callbacks on one dedicated thread so a slow listener never stalls
+ * a socket read.
+ * <p>
+ * Workers only mark a task's report dirty. Dirty reports are published at most once
+ * every {@code interval} with their latest values, so the number of progress events
+ * depends on the number of running tasks, not chunks or reads. Other events are run
+ * in order on the same thread, after pending progress is published.
+ */
+public class ProgressDispatcher {
+
+    public interface Publisher {
+        void publish(ReportStructure rs);
+    }
+
+    public static final long DEFAULT_INTERVAL = 200; // ms
+    public static final long MIN_INTERVAL = 50;      // ms
+    // posted events are delivered on shutdown, a stuck listener mustn't block it forever
+    private static final long SHUTDOWN_TIMEOUT = 5000; // ms
+
+    private final ScheduledExecutorService executor;
+    private final ConcurrentLinkedQueue<ReportStructure> dirtyReports = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Publisher publisher;
+    private volatile long interval = DEFAULT_INTERVAL;
+    private volatile Thread thread;
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled.set(false);
+            flush();
+        }
+    };
+
+    public ProgressDispatcher(Publisher publisher) {
+        this.publisher = publisher;
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DownloadCallbacks");
+                thread.setDaemon(true);
+                ProgressDispatcher.this.thread = thread;
+                return thread;
+            }
+        });
+    }
+
+    public void setInterval(long intervalMs) {
+        this.interval = Math.max(MIN_INTERVAL, intervalMs);
+    }
+
+    /**
+     * called on every read, queues the report only on its first change since last publish
+     */
+    public void progress(ReportStructure rs) {
+        if (!rs.markDirty()) return;
+
+        dirtyReports.offer(rs);
+        if (flushScheduled.compareAndSet(false, true)) {
+            try {
+                executor.schedule(flush, interval, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                flushScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * run event on dispatcher thread, after progress reported before it
+     */
+    public void execute(final Runnable event) {
+        try {
+            executor.execute(() -> {
+                flush();
+                // executor future would swallow it
+                try {
+                    event.run();
+                } catch (RuntimeException e) {
+                    Timber.e(e, "Listener event failed");
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Timber.w("Dispatcher is shut down, drop event");
+        }
+    }
+
+    private void flush() {
+        ReportStructure rs;
+        while ((rs = dirtyReports.poll()) != null) {
+            rs.clearDirty();
+            try {
+                publisher.publish(rs);
+            } catch (RuntimeException e) {
+                Timber.e(e, "Progress listener failed");
+            }
+        }
+    }
+
+    /**
+     * events already posted are delivered before this returns,
+     * unless it's called from a listener on dispatcher thread
+     */
+    public void shutdown() {
+        executor.shutdown();
+        if (Thread.currentThread() == thread) return;
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS))
+                Timber.w("Listener events not delivered in %d ms", SHUTDOWN_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}